@@ -17,11 +17,31 @@
 package org.microg.nlp.api;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 public class AbstractBackendHelper {
+    private static HandlerThread sharedThread;
+
     protected final Context context;
     protected State state = State.DISABLED;
     protected boolean currentDataUsed = true;
+    protected ScanRecorder recorder;
+    private Looper looper;
+    private Handler handler;
+    private boolean replaying;
+
+    private final Dispatcher dispatcher = new Dispatcher();
+    private final List<Subscription<?>> subscriptions = new ArrayList<Subscription<?>>();
+    private boolean openedByCaller;
+    private int openCount;
 
     public AbstractBackendHelper(Context context) {
         if (context == null)
@@ -31,25 +51,57 @@ public class AbstractBackendHelper {
 
     /**
      * Call this in {@link org.microg.nlp.api.LocationBackendService#onOpen()}.
+     * <p/>
+     * The helper is shared with its subscriptions: it is started by the first of this call and
+     * {@link #addSubscription(Object, long, Executor)}, and stopped only when both this was
+     * closed and all subscriptions were cancelled.
      */
     public synchronized void onOpen() {
-        if (state == State.WAITING || state == State.SCANNING)
+        if (openedByCaller)
             throw new IllegalStateException("Do not call onOpen if not closed before");
-        currentDataUsed = true;
-        state = State.WAITING;
+        openedByCaller = true;
+        acquire();
     }
 
     /**
      * Call this in {@link org.microg.nlp.api.LocationBackendService#onClose()}.
      */
     public synchronized void onClose() {
-        if (state == State.DISABLED || state == State.DISABLING)
+        if (!openedByCaller)
             throw new IllegalStateException("Do not call onClose if not opened before");
+        openedByCaller = false;
+        release();
+    }
+
+    private void acquire() {
+        if (openCount++ > 0) return;
+        currentDataUsed = true;
+        state = State.WAITING;
+        onStart();
+    }
+
+    private void release() {
+        if (--openCount > 0) return;
         if (state == State.WAITING) {
             state = State.DISABLED;
         } else {
             state = State.DISABLING;
         }
+        onStop();
+    }
+
+    /**
+     * Called with the lock of this helper held, when the helper is opened while not opened by
+     * anyone else. Register receivers and listeners here.
+     */
+    protected void onStart() {
+    }
+
+    /**
+     * Called with the lock of this helper held, when the last one who opened the helper closed
+     * it. Unregister receivers and listeners here.
+     */
+    protected void onStop() {
     }
 
     /**
@@ -58,6 +110,295 @@ public class AbstractBackendHelper {
     public synchronized void onUpdate() {
     }
 
+    /**
+     * Record all scans seen by this helper using the given {@link ScanRecorder}, so they can
+     * be replayed later using {@link ScanReplayer}. Pass {@code null} to stop recording.
+     */
+    public synchronized void setScanRecorder(ScanRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Sets whether scan input comes from a {@link ScanReplayer} instead of the system services.
+     * While replaying, the helper registers no receivers or listeners and {@link #onUpdate()}
+     * does not request scans, it only waits for the next replayed scan. Call this before
+     * {@link #onOpen()}.
+     */
+    synchronized void setReplaying(boolean replaying) {
+        if (isOpened())
+            throw new IllegalStateException("Do not call setReplaying while opened");
+        this.replaying = replaying;
+    }
+
+    protected synchronized boolean isReplaying() {
+        return replaying;
+    }
+
+    /**
+     * Sets the looper that receivers, listeners and callbacks of this helper run on. Call this
+     * before {@link #onOpen()}.
+     * <p/>
+     * Default is a background thread shared by all helpers, scan results are never processed on
+     * the main thread.
+     */
+    public synchronized void setLooper(Looper looper) {
+        if (isOpened())
+            throw new IllegalStateException("Do not call setLooper while opened");
+        this.looper = looper;
+        this.handler = null;
+    }
+
+    /**
+     * @return a handler for the looper set using {@link #setLooper(Looper)}, or the shared
+     * background looper.
+     */
+    protected synchronized Handler getHandler() {
+        if (handler == null) {
+            handler = new Handler(looper != null ? looper : getSharedLooper());
+        }
+        return handler;
+    }
+
+    static synchronized Looper getSharedLooper() {
+        if (sharedThread == null) {
+            sharedThread = new HandlerThread("BackendHelper", Process.THREAD_PRIORITY_BACKGROUND);
+            sharedThread.start();
+        }
+        return sharedThread.getLooper();
+    }
+
+    /**
+     * Sets the executor used to call the listener of this helper. Listener calls never block
+     * the helper: if the listener is still busy with a previous snapshot when a newer one is
+     * available, only the newest snapshot is delivered, skipped snapshots are counted (see
+     * {@link #getDroppedSnapshotCount()}).
+     * <p/>
+     * Default is {@code null}, the listener is called directly on the thread that produced the
+     * snapshot (but without holding the lock of this helper).
+     */
+    public void setDispatchExecutor(Executor dispatchExecutor) {
+        dispatcher.setExecutor(dispatchExecutor);
+    }
+
+    /**
+     * @return the number of snapshots that were not delivered to the listener, because a newer
+     * snapshot became available before the listener was ready.
+     */
+    public int getDroppedSnapshotCount() {
+        return dispatcher.getDroppedSnapshots();
+    }
+
+    /**
+     * Deliver a snapshot to the listener, using the dispatch executor if set. Do not call this
+     * while holding the lock of this helper.
+     *
+     * @param delivery calls the listener with the snapshot.
+     */
+    protected void dispatch(Runnable delivery) {
+        dispatcher.dispatch(delivery);
+    }
+
+    /**
+     * Adds a subscription, used by the {@code subscribe} methods of the helpers. The first
+     * subscription keeps the helper opened until the last one is cancelled, updates are
+     * triggered at the shortest interval of all subscriptions.
+     */
+    protected synchronized <L> Subscription<L> addSubscription(L listener, long minInterval, Executor executor) {
+        if (listener == null)
+            throw new IllegalArgumentException("listener must not be null");
+        if (minInterval <= 0)
+            throw new IllegalArgumentException("minInterval must be positive");
+        Subscription<L> subscription = new Subscription<L>(this, listener, minInterval, executor);
+        subscriptions.add(subscription);
+        // All subscriptions together hold one reference
+        if (subscriptions.size() == 1) acquire();
+        Handler handler = getHandler();
+        handler.removeCallbacks(scheduledUpdate);
+        handler.post(scheduledUpdate);
+        return subscription;
+    }
+
+    private synchronized void removeSubscription(Subscription<?> subscription) {
+        if (!subscriptions.remove(subscription) || !subscriptions.isEmpty()) return;
+        getHandler().removeCallbacks(scheduledUpdate);
+        release();
+    }
+
+    protected synchronized boolean hasSubscriptions() {
+        return !subscriptions.isEmpty();
+    }
+
+    private synchronized long getUpdateInterval() {
+        long interval = Long.MAX_VALUE;
+        for (Subscription<?> subscription : subscriptions) {
+            interval = Math.min(interval, subscription.minInterval);
+        }
+        return subscriptions.isEmpty() ? 0 : interval;
+    }
+
+    private final Runnable scheduledUpdate = new Runnable() {
+        @Override
+        public void run() {
+            long interval = getUpdateInterval();
+            if (interval <= 0) return;
+            onUpdate();
+            getHandler().postDelayed(this, interval);
+        }
+    };
+
+    /**
+     * Deliver a snapshot to all subscriptions whose minimum interval passed since their last
+     * delivery. Do not call this while holding the lock of this helper.
+     */
+    @SuppressWarnings("unchecked")
+    protected <L> void dispatchToSubscriptions(final Delivery<L> delivery) {
+        List<Subscription<L>> due = new ArrayList<Subscription<L>>();
+        synchronized (this) {
+            if (subscriptions.isEmpty()) return;
+            long now = SystemClock.elapsedRealtime();
+            for (Subscription<?> subscription : subscriptions) {
+                if (subscription.lastDelivery == 0 || now - subscription.lastDelivery >= subscription.minInterval) {
+                    subscription.lastDelivery = now;
+                    due.add((Subscription<L>) subscription);
+                }
+            }
+        }
+        for (final Subscription<L> subscription : due) {
+            subscription.dispatcher.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    delivery.deliver(subscription.listener);
+                }
+            });
+        }
+    }
+
+    /**
+     * Calls a listener with a snapshot.
+     */
+    protected interface Delivery<L> {
+        void deliver(L listener);
+    }
+
+    /**
+     * A listener subscribed to the snapshots of a helper. All subscriptions of a helper share its
+     * receivers, listeners and scans.
+     */
+    public static class Subscription<L> {
+        private final AbstractBackendHelper helper;
+        private final L listener;
+        private final long minInterval;
+        private final Dispatcher dispatcher = new Dispatcher();
+        private long lastDelivery;
+
+        private Subscription(AbstractBackendHelper helper, L listener, long minInterval, Executor executor) {
+            this.helper = helper;
+            this.listener = listener;
+            this.minInterval = minInterval;
+            this.dispatcher.setExecutor(executor);
+        }
+
+        public long getMinInterval() {
+            return minInterval;
+        }
+
+        /**
+         * @return the number of snapshots that were not delivered, because a newer snapshot
+         * became available before the listener was ready.
+         */
+        public int getDroppedSnapshotCount() {
+            return dispatcher.getDroppedSnapshots();
+        }
+
+        /**
+         * Stop delivering snapshots to this subscription. Cancelling the last subscription closes
+         * the helper, unless it is still opened using {@link #onOpen()}.
+         */
+        public void cancel() {
+            helper.removeSubscription(this);
+        }
+    }
+
+    /**
+     * Calls a listener using an optional executor, delivering only the newest of the snapshots
+     * that arrive while the listener is busy.
+     */
+    private static class Dispatcher {
+        private Executor executor;
+        private Runnable pendingDelivery;
+        private boolean dispatching;
+        private int droppedSnapshots;
+
+        synchronized void setExecutor(Executor executor) {
+            this.executor = executor;
+        }
+
+        synchronized int getDroppedSnapshots() {
+            return droppedSnapshots;
+        }
+
+        void dispatch(Runnable delivery) {
+            Executor executor;
+            synchronized (this) {
+                executor = this.executor;
+                if (executor != null) {
+                    if (pendingDelivery != null) droppedSnapshots++;
+                    pendingDelivery = delivery;
+                    if (dispatching) return;
+                    dispatching = true;
+                }
+            }
+            if (executor == null) {
+                delivery.run();
+                return;
+            }
+            try {
+                executor.execute(drain);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    dispatching = false;
+                }
+                throw e;
+            }
+        }
+
+        private final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    Runnable delivery;
+                    synchronized (Dispatcher.this) {
+                        delivery = pendingDelivery;
+                        pendingDelivery = null;
+                        if (delivery == null) {
+                            dispatching = false;
+                            return;
+                        }
+                    }
+                    boolean delivered = false;
+                    try {
+                        delivery.run();
+                        delivered = true;
+                    } finally {
+                        // A throwing listener must not block later deliveries
+                        if (!delivered) {
+                            synchronized (Dispatcher.this) {
+                                dispatching = false;
+                            }
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * @return true if this helper was opened and not closed since.
+     */
+    protected boolean isOpened() {
+        return state == State.WAITING || state == State.SCANNING;
+    }
+
     public String[] getRequiredPermissions() {
         return new String[0];
     }
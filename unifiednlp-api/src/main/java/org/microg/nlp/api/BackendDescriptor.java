@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.os.Bundle;
+
+import java.util.Locale;
+
+/**
+ * The expected cost and capabilities of a backend, as declared in the metadata of its service,
+ * so hosts can schedule and prioritize backends. Read it using
+ * {@link VersionUtil#getBackendDescriptor(android.content.Context, android.content.ComponentName)}.
+ * <p/>
+ * Declare it in the service element of your backend, all entries are optional:
+ * <pre>
+ * &lt;meta-data android:name="org.microg.nlp.BACKEND_LATENCY" android:value="50" /&gt;
+ * &lt;meta-data android:name="org.microg.nlp.BACKEND_POWER" android:value="low" /&gt;
+ * &lt;meta-data android:name="org.microg.nlp.BACKEND_SOURCES" android:value="cell|wifi" /&gt;
+ * &lt;meta-data android:name="org.microg.nlp.BACKEND_MIN_INTERVAL" android:value="60000" /&gt;
+ * </pre>
+ */
+public class BackendDescriptor {
+    public static final int SOURCE_CELL = 1;
+    public static final int SOURCE_WIFI = 1 << 1;
+    public static final int SOURCE_BLUETOOTH = 1 << 2;
+    public static final int SOURCE_NETWORK = 1 << 3;
+
+    /**
+     * Descriptor of backends that do not declare anything.
+     */
+    public static final BackendDescriptor UNKNOWN = new BackendDescriptor(-1, BackendRequest.POWER_NO_REQUIREMENT, 0, -1);
+
+    private final long latency;
+    private final int power;
+    private final int sources;
+    private final long minInterval;
+
+    /**
+     * @param latency     expected time in milliseconds to answer an update, or -1 if unknown.
+     * @param power       power class, one of the {@code BackendRequest.POWER_*} constants, or
+     *                    {@link BackendRequest#POWER_NO_REQUIREMENT} if unknown.
+     * @param sources     combination of the {@code SOURCE_*} constants.
+     * @param minInterval shortest useful interval between updates in milliseconds, or -1 if
+     *                    unknown.
+     */
+    public BackendDescriptor(long latency, int power, int sources, long minInterval) {
+        this.latency = latency;
+        this.power = power;
+        this.sources = sources;
+        this.minInterval = minInterval;
+    }
+
+    /**
+     * @param metadata the metadata of a backend service, may be null.
+     */
+    public static BackendDescriptor fromMetadata(Bundle metadata) {
+        if (metadata == null) return UNKNOWN;
+        return new BackendDescriptor(parseLong(metadata.get(Constants.METADATA_BACKEND_LATENCY)),
+                parsePower(metadata.get(Constants.METADATA_BACKEND_POWER)),
+                parseSources(metadata.get(Constants.METADATA_BACKEND_SOURCES)),
+                parseLong(metadata.get(Constants.METADATA_BACKEND_MIN_INTERVAL)));
+    }
+
+    private static long parseLong(Object value) {
+        if (value instanceof Number) return ((Number) value).longValue();
+        if (value instanceof String) {
+            try {
+                return Long.parseLong(((String) value).trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return -1;
+    }
+
+    private static int parsePower(Object value) {
+        if (value instanceof Number) {
+            int power = ((Number) value).intValue();
+            if (power >= BackendRequest.POWER_LOW && power <= BackendRequest.POWER_HIGH) return power;
+        } else if (value instanceof String) {
+            String power = ((String) value).trim().toLowerCase(Locale.ROOT);
+            if (power.equals("low")) return BackendRequest.POWER_LOW;
+            if (power.equals("medium")) return BackendRequest.POWER_MEDIUM;
+            if (power.equals("high")) return BackendRequest.POWER_HIGH;
+        }
+        return BackendRequest.POWER_NO_REQUIREMENT;
+    }
+
+    private static int parseSources(Object value) {
+        if (!(value instanceof String)) return 0;
+        int sources = 0;
+        for (String source : ((String) value).toLowerCase(Locale.ROOT).split("[|,\\s]+")) {
+            if (source.equals("cell")) sources |= SOURCE_CELL;
+            else if (source.equals("wifi")) sources |= SOURCE_WIFI;
+            else if (source.equals("bluetooth")) sources |= SOURCE_BLUETOOTH;
+            else if (source.equals("network")) sources |= SOURCE_NETWORK;
+        }
+        return sources;
+    }
+
+    /**
+     * @return expected time in milliseconds to answer an update, or -1 if unknown.
+     */
+    public long getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return power class, one of the {@code BackendRequest.POWER_*} constants.
+     */
+    public int getPower() {
+        return power;
+    }
+
+    /**
+     * @return combination of the {@code SOURCE_*} constants, 0 if unknown.
+     */
+    public int getSources() {
+        return sources;
+    }
+
+    public boolean usesSource(int source) {
+        return (sources & source) != 0;
+    }
+
+    /**
+     * @return shortest useful interval between updates in milliseconds, or -1 if unknown.
+     */
+    public long getMinInterval() {
+        return minInterval;
+    }
+
+    @Override
+    public String toString() {
+        return "BackendDescriptor{" +
+                "latency=" + latency +
+                ", power=" + power +
+                ", sources=" + sources +
+                ", minInterval=" + minInterval +
+                '}';
+    }
+}
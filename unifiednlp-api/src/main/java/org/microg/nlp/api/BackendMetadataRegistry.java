@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Caches the {@code Constants.METADATA_*} entries of packages and backend services, so that they
+ * are read from {@link PackageManager} only once per package instead of on every call.
+ * <p/>
+ * Cached entries of a package are dropped when the package is added, changed, replaced or
+ * removed. {@link VersionUtil} uses this registry, hosts listing many backends should use it
+ * as well.
+ */
+public class BackendMetadataRegistry {
+    private static BackendMetadataRegistry instance;
+
+    /**
+     * Cached for packages and services without metadata or that don't exist.
+     */
+    private static final Bundle EMPTY = new Bundle();
+
+    private final Context context;
+    private final Map<String, Bundle> packageMetadata = new HashMap<String, Bundle>();
+    private final Map<ComponentName, Bundle> serviceMetadata = new HashMap<ComponentName, Bundle>();
+
+    private final BroadcastReceiver packageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getData() != null) {
+                invalidate(intent.getData().getSchemeSpecificPart());
+            }
+        }
+    };
+
+    /**
+     * Use {@link #getInstance(Context)}, only tests create their own registries.
+     */
+    BackendMetadataRegistry(Context context) {
+        this.context = context;
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiver(packageReceiver, filter);
+    }
+
+    public static synchronized BackendMetadataRegistry getInstance(Context context) {
+        if (instance == null) {
+            Context applicationContext = context.getApplicationContext();
+            instance = new BackendMetadataRegistry(applicationContext != null ? applicationContext : context);
+        }
+        return instance;
+    }
+
+    /**
+     * @return the api version declared by the package, or {@code null}.
+     */
+    public String getApiVersion(String packageName) {
+        return getPackageMetadata(packageName).getString(Constants.METADATA_API_VERSION);
+    }
+
+    public String getSettingsActivity(ComponentName service) {
+        return getServiceMetadata(service).getString(Constants.METADATA_BACKEND_SETTINGS_ACTIVITY);
+    }
+
+    public String getAboutActivity(ComponentName service) {
+        return getServiceMetadata(service).getString(Constants.METADATA_BACKEND_ABOUT_ACTIVITY);
+    }
+
+    public String getInitActivity(ComponentName service) {
+        return getServiceMetadata(service).getString(Constants.METADATA_BACKEND_INIT_ACTIVITY);
+    }
+
+    public String getSummary(ComponentName service) {
+        return getServiceMetadata(service).getString(Constants.METADATA_BACKEND_SUMMARY);
+    }
+
+    public BackendDescriptor getDescriptor(ComponentName service) {
+        return BackendDescriptor.fromMetadata(getServiceMetadata(service));
+    }
+
+    /**
+     * Drop all cached entries of the given package.
+     */
+    public synchronized void invalidate(String packageName) {
+        packageMetadata.remove(packageName);
+        for (Iterator<ComponentName> iterator = serviceMetadata.keySet().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().getPackageName().equals(packageName)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private synchronized Bundle getPackageMetadata(String packageName) {
+        Bundle metadata = packageMetadata.get(packageName);
+        if (metadata == null) {
+            try {
+                metadata = context.getPackageManager()
+                        .getApplicationInfo(packageName, PackageManager.GET_META_DATA).metaData;
+            } catch (PackageManager.NameNotFoundException e) {
+                metadata = null;
+            }
+            if (metadata == null) metadata = EMPTY;
+            packageMetadata.put(packageName, metadata);
+        }
+        return metadata;
+    }
+
+    private synchronized Bundle getServiceMetadata(ComponentName service) {
+        Bundle metadata = serviceMetadata.get(service);
+        if (metadata == null) {
+            try {
+                metadata = context.getPackageManager()
+                        .getServiceInfo(service, PackageManager.GET_META_DATA).metaData;
+            } catch (PackageManager.NameNotFoundException e) {
+                metadata = null;
+            }
+            if (metadata == null) metadata = EMPTY;
+            serviceMetadata.put(service, metadata);
+        }
+        return metadata;
+    }
+}
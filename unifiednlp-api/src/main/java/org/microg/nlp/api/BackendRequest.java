@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.os.Bundle;
+
+/**
+ * What the clients of a location backend currently ask for: the interval between updates, the
+ * required accuracy and the acceptable power usage.
+ * <p/>
+ * Sent to backends as {@link Bundle} with the {@code Constants.REQUEST_EXTRA_*} keys, see
+ * {@link LocationBackendService#onRequestChanged(BackendRequest)}. Missing values mean there is
+ * no such requirement.
+ */
+public class BackendRequest {
+    public static final int POWER_NO_REQUIREMENT = 0;
+    public static final int POWER_LOW = 1;
+    public static final int POWER_MEDIUM = 2;
+    public static final int POWER_HIGH = 3;
+
+    /**
+     * A request without any requirements, used before the first request was received.
+     */
+    public static final BackendRequest NO_REQUIREMENT = new BackendRequest(-1, 0, POWER_NO_REQUIREMENT);
+
+    private final long interval;
+    private final float accuracy;
+    private final int power;
+
+    /**
+     * @param interval desired time between updates in milliseconds, or -1 if unknown.
+     * @param accuracy required accuracy in meters, or 0 if not required.
+     * @param power    acceptable power usage, one of the {@code POWER_*} constants.
+     */
+    public BackendRequest(long interval, float accuracy, int power) {
+        if (power < POWER_NO_REQUIREMENT || power > POWER_HIGH)
+            throw new IllegalArgumentException("Invalid power: " + power);
+        this.interval = interval;
+        this.accuracy = accuracy;
+        this.power = power;
+    }
+
+    public static BackendRequest fromBundle(Bundle bundle) {
+        if (bundle == null) return NO_REQUIREMENT;
+        int power = bundle.getInt(Constants.REQUEST_EXTRA_POWER, POWER_NO_REQUIREMENT);
+        if (power < POWER_NO_REQUIREMENT || power > POWER_HIGH) power = POWER_NO_REQUIREMENT;
+        return new BackendRequest(bundle.getLong(Constants.REQUEST_EXTRA_INTERVAL, -1),
+                bundle.getFloat(Constants.REQUEST_EXTRA_ACCURACY, 0), power);
+    }
+
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLong(Constants.REQUEST_EXTRA_INTERVAL, interval);
+        bundle.putFloat(Constants.REQUEST_EXTRA_ACCURACY, accuracy);
+        bundle.putInt(Constants.REQUEST_EXTRA_POWER, power);
+        return bundle;
+    }
+
+    /**
+     * @return desired time between updates in milliseconds, or -1 if unknown.
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return required accuracy in meters, or 0 if not required.
+     */
+    public float getAccuracy() {
+        return accuracy;
+    }
+
+    /**
+     * @return acceptable power usage, one of the {@code POWER_*} constants.
+     */
+    public int getPower() {
+        return power;
+    }
+
+    @Override
+    public String toString() {
+        return "BackendRequest{" +
+                "interval=" + interval +
+                ", accuracy=" + accuracy +
+                ", power=" + power +
+                '}';
+    }
+}
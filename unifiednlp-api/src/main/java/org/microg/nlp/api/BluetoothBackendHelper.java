@@ -1,14 +1,26 @@
 package org.microg.nlp.api;
 
+import android.annotation.TargetApi;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Build;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import static android.Manifest.permission.ACCESS_COARSE_LOCATION;
 import static android.Manifest.permission.BLUETOOTH;
@@ -16,12 +28,33 @@ import static android.Manifest.permission.BLUETOOTH_ADMIN;
 
 /**
  * Utility class to support backend using Bluetooth for geolocation.
+ * <p/>
+ * On Android 5.0+ devices that support offloaded scan batching, Bluetooth LE advertisements are
+ * scanned in low power mode and delivered in batches. The LE scan is duty cycled: each update
+ * starts a scan that is stopped again after its first batch, or after
+ * {@link #LE_REPORT_DELAY} plus {@link #LE_REPORT_GRACE} without one. Otherwise, or if the LE
+ * scan fails, classic Bluetooth discovery is used.
  */
 @SuppressWarnings("MissingPermission")
 public class BluetoothBackendHelper extends AbstractBackendHelper {
     private final static IntentFilter bluetoothBroadcastFilter =
             new IntentFilter();
 
+    static {
+        bluetoothBroadcastFilter.addAction(BluetoothDevice.ACTION_FOUND);
+        bluetoothBroadcastFilter.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
+        bluetoothBroadcastFilter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+    }
+
+    /**
+     * Time an LE scan collects advertisements before they are reported as one batch.
+     */
+    public static final int LE_REPORT_DELAY = 10 * 1000;
+    /**
+     * Additional time to wait for the batch, before the scan is stopped and reported empty.
+     */
+    public static final int LE_REPORT_GRACE = 5 * 1000;
+
     private final Listener listener;
     private final BluetoothAdapter bluetoothAdapter;
     private final Set<Bluetooth> bluetooths = new HashSet<Bluetooth>();
@@ -30,48 +63,112 @@ public class BluetoothBackendHelper extends AbstractBackendHelper {
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
             if (BluetoothAdapter.ACTION_DISCOVERY_STARTED.equals(action)) {
-                bluetooths.clear();
+                onDiscoveryStarted();
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
-                onBluetoothChanged();
+                onDiscoveryFinished();
             } else if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
                 int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
-                Bluetooth bluetoothDiscovered = new Bluetooth(device.getAddress(), device.getName(), rssi);
-                bluetooths.add(bluetoothDiscovered);
+                onDeviceFound(device.getAddress(), device.getName(), rssi);
             }
         }
     };
+    private final Runnable leScanTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onLeScanTimeout();
+        }
+    };
+    private LeScanCallback leScanCallback;
+    private boolean useLowEnergyScan = true;
 
     public BluetoothBackendHelper(Context context, Listener listener){
+        this(context, listener, true);
+    }
+
+    /**
+     * Create a new instance of {@link BluetoothBackendHelper} that is only used via
+     * {@link #subscribe(Listener, long, Executor)}.
+     */
+    public BluetoothBackendHelper(Context context) {
+        this(context, null, false);
+    }
+
+    private BluetoothBackendHelper(Context context, Listener listener, boolean listenerRequired) {
         super(context);
-        if (listener == null)
+        if (listenerRequired && listener == null)
             throw new IllegalArgumentException("listener must not be null");
         this.listener = listener;
         this.bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        bluetoothBroadcastFilter.addAction(BluetoothDevice.ACTION_FOUND);
-        bluetoothBroadcastFilter.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
-        bluetoothBroadcastFilter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
     }
 
-    public synchronized void onOpen() {
-        super.onOpen();
-        bluetoothBroadcastFilter.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
-        bluetoothBroadcastFilter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
-        bluetoothBroadcastFilter.addAction(BluetoothDevice.ACTION_FOUND);
-        context.registerReceiver(bluetoothBroadcastReceiver, bluetoothBroadcastFilter);
+    /**
+     * Subscribe to the Bluetooth devices seen by this helper, in addition to the listener passed to the
+     * constructor. Subscriptions share the receivers and scans of this helper.
+     *
+     * @param minInterval minimum time in milliseconds between two deliveries to the listener.
+     * @param executor    executor to call the listener on, or {@code null} to call it directly.
+     * @throws IllegalArgumentException if listener is null or minInterval is not positive.
+     */
+    public Subscription<Listener> subscribe(Listener listener, long minInterval, Executor executor) {
+        return addSubscription(listener, minInterval, executor);
     }
 
-    public synchronized void onClose() {
-        super.onClose();
-        context.unregisterReceiver(bluetoothBroadcastReceiver);
+    /**
+     * Sets whether to scan for Bluetooth LE advertisements in batches or to use classic
+     * Bluetooth discovery.
+     * <p/>
+     * LE scanning requires Android 5.0+ and a device that supports offloaded scan batching,
+     * otherwise classic discovery is used anyway.
+     * <p/>
+     * Default is {@code true}.
+     */
+    public synchronized void setUseLowEnergyScan(boolean useLowEnergyScan) {
+        this.useLowEnergyScan = useLowEnergyScan;
+        if (!useLowEnergyScan) stopLeScan();
     }
 
-    public synchronized void onUpdate() {
-        if (!currentDataUsed) {
-            listener.onBluetoothChanged(getBluetooths());
-        } else {
-            scanBluetooth();
+    @Override
+    protected void onStart() {
+        if (isReplaying()) return;
+        context.registerReceiver(bluetoothBroadcastReceiver, bluetoothBroadcastFilter, null, getHandler());
+    }
+
+    @Override
+    protected void onStop() {
+        stopLeScan();
+        if (!isReplaying()) context.unregisterReceiver(bluetoothBroadcastReceiver);
+    }
+
+    public void onUpdate() {
+        synchronized (this) {
+            if (!isOpened()) return;
+            if (currentDataUsed) {
+                scanBluetooth();
+                return;
+            }
         }
+        dispatchBluetooths();
+    }
+
+    private void dispatchBluetooths() {
+        final Set<Bluetooth> bluetooths = getBluetooths();
+        if (listener != null) {
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onBluetoothChanged(bluetooths);
+                }
+            });
+        }
+        if (!hasSubscriptions()) return;
+        final Set<Bluetooth> shared = Collections.unmodifiableSet(new HashSet<Bluetooth>(bluetooths));
+        dispatchToSubscriptions(new Delivery<Listener>() {
+            @Override
+            public void deliver(Listener listener) {
+                listener.onBluetoothChanged(shared);
+            }
+        });
     }
 
     @Override
@@ -79,23 +176,168 @@ public class BluetoothBackendHelper extends AbstractBackendHelper {
         return new String[]{BLUETOOTH, BLUETOOTH_ADMIN, ACCESS_COARSE_LOCATION};
     }
 
-    private void onBluetoothChanged() {
+    // Called for the discovery broadcasts, or by ScanReplayer when replaying a recording.
+
+    synchronized void onDiscoveryStarted() {
+        if (recorder != null) recorder.recordBluetoothDiscoveryStarted();
+        bluetooths.clear();
+    }
+
+    /**
+     * @param address as reported by {@link BluetoothDevice#getAddress()}, in any form
+     *                {@link #wellFormedMac(String)} accepts.
+     */
+    void onDeviceFound(String address, String name, int rssi) {
+        onDeviceFound(new Bluetooth(address, name, rssi));
+    }
+
+    synchronized void onDeviceFound(Bluetooth bluetooth) {
+        if (recorder != null) recorder.recordBluetoothFound(bluetooth);
+        bluetooths.add(bluetooth);
+    }
+
+    void onDiscoveryFinished() {
+        synchronized (this) {
+            if (recorder != null) recorder.recordBluetoothDiscoveryFinished();
+        }
+        finishDiscovery();
+    }
+
+    private void finishDiscovery() {
         if (loadBluetooths()) {
-            listener.onBluetoothChanged(getBluetooths());
+            dispatchBluetooths();
         }
     }
 
     private synchronized boolean scanBluetooth() {
-        if (state == State.DISABLED)
+        if (!isOpened())
             return false;
-        if (bluetoothAdapter.isEnabled()) {
+        if (isReplaying()) {
             state = State.SCANNING;
-            bluetoothAdapter.startDiscovery();
+            return true;
+        }
+        if (bluetoothAdapter != null && bluetoothAdapter.isEnabled()) {
+            state = State.SCANNING;
+            if (!scanLowEnergy()) {
+                bluetoothAdapter.startDiscovery();
+            }
             return true;
         }
         return false;
     }
 
+    /**
+     * Starts an LE scan that is stopped after its first batch. If the scan of a previous update
+     * did not report yet, its batch is awaited instead of starting a new one.
+     *
+     * @return false if classic discovery should be used instead.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean scanLowEnergy() {
+        if (!useLowEnergyScan || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return false;
+        BluetoothLeScanner scanner = bluetoothAdapter.getBluetoothLeScanner();
+        if (scanner == null)
+            return false;
+        try {
+            if (leScanCallback != null) {
+                return true;
+            }
+            if (!bluetoothAdapter.isOffloadedScanBatchingSupported()) {
+                useLowEnergyScan = false;
+                return false;
+            }
+            ScanSettings settings = new ScanSettings.Builder()
+                    .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
+                    .setReportDelay(LE_REPORT_DELAY)
+                    .build();
+            leScanCallback = new LeScanCallback();
+            scanner.startScan(null, settings, leScanCallback);
+            getHandler().postDelayed(leScanTimeout, LE_REPORT_DELAY + LE_REPORT_GRACE);
+            return true;
+        } catch (Exception e) {
+            // Bluetooth turned off meanwhile or missing permission
+            leScanCallback = null;
+            return false;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private synchronized void stopLeScan() {
+        if (leScanCallback == null) return;
+        getHandler().removeCallbacks(leScanTimeout);
+        try {
+            BluetoothLeScanner scanner = bluetoothAdapter.getBluetoothLeScanner();
+            if (scanner != null) scanner.stopScan(leScanCallback);
+        } catch (Exception ignored) {
+            // Bluetooth turned off meanwhile, scan is stopped anyway
+        }
+        leScanCallback = null;
+    }
+
+    /**
+     * Ends the duty cycle of the LE scan that reported the batch, if it is still the current one.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void onLeScanBatch(LeScanCallback callback, List<ScanResult> results) {
+        synchronized (this) {
+            // Late batch of a scan that was stopped meanwhile
+            if (leScanCallback != callback) return;
+            stopLeScan();
+        }
+        onLeScanResults(results == null ? Collections.<ScanResult>emptyList() : results);
+    }
+
+    private void onLeScanTimeout() {
+        LeScanCallback callback;
+        synchronized (this) {
+            callback = leScanCallback;
+        }
+        if (callback != null) onLeScanBatch(callback, null);
+    }
+
+    /**
+     * Called with a batch of LE scan results, possibly empty.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    void onLeScanResults(List<ScanResult> results) {
+        // A batch may contain several advertisements per device, keep the strongest
+        Map<String, Bluetooth> found = new LinkedHashMap<String, Bluetooth>();
+        for (ScanResult result : results) {
+            if (result.getDevice() == null) continue;
+            String name = result.getScanRecord() == null ? null : result.getScanRecord().getDeviceName();
+            Bluetooth bluetooth = new Bluetooth(result.getDevice().getAddress(), name, result.getRssi());
+            Bluetooth previous = found.get(bluetooth.getBssid());
+            if (previous == null || previous.getRssi() < bluetooth.getRssi()) {
+                found.put(bluetooth.getBssid(), bluetooth);
+            }
+        }
+        onLeScanParsed(new ArrayList<Bluetooth>(found.values()));
+    }
+
+    /**
+     * Called with the devices of a parsed LE batch, or by {@link ScanReplayer} with a recorded
+     * batch.
+     */
+    void onLeScanParsed(List<Bluetooth> found) {
+        synchronized (this) {
+            if (recorder != null) recorder.recordBluetoothLeBatch(found);
+            bluetooths.clear();
+            bluetooths.addAll(found);
+        }
+        finishDiscovery();
+    }
+
+    private synchronized void onLeScanFailed(LeScanCallback callback) {
+        if (leScanCallback != callback) return;
+        getHandler().removeCallbacks(leScanTimeout);
+        leScanCallback = null;
+        useLowEnergyScan = false;
+        if (state == State.SCANNING) {
+            bluetoothAdapter.startDiscovery();
+        }
+    }
+
     private synchronized boolean loadBluetooths() {
         currentDataUsed = false;
         if (state == State.DISABLING)
@@ -115,6 +357,26 @@ public class BluetoothBackendHelper extends AbstractBackendHelper {
         return new HashSet<Bluetooth>(bluetooths);
     }
 
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private class LeScanCallback extends ScanCallback {
+        @Override
+        public void onBatchScanResults(final List<ScanResult> results) {
+            // Scan callbacks are delivered on the main thread. Empty batches are posted too, as
+            // they complete the scan of an update.
+            getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    onLeScanBatch(LeScanCallback.this, results);
+                }
+            });
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            onLeScanFailed(this);
+        }
+    }
+
     public interface Listener {
         public void onBluetoothChanged(Set<Bluetooth> bluetooth);
     }
@@ -153,6 +415,7 @@ public class BluetoothBackendHelper extends AbstractBackendHelper {
      * @return well-formed mac address
      */
     public static String wellFormedMac(String mac) {
+        if (WiFiBackendHelper.isWellFormedMac(mac)) return mac;
         int HEX_RADIX = 16;
         int[] bytes = new int[6];
         String[] splitAtColon = mac.split(":");
@@ -23,31 +23,46 @@ import android.os.Handler;
 import android.telephony.CellIdentityCdma;
 import android.telephony.CellIdentityGsm;
 import android.telephony.CellIdentityLte;
+import android.telephony.CellIdentityNr;
+import android.telephony.CellIdentityTdscdma;
 import android.telephony.CellIdentityWcdma;
 import android.telephony.CellInfo;
 import android.telephony.CellInfoCdma;
 import android.telephony.CellInfoGsm;
 import android.telephony.CellInfoLte;
+import android.telephony.CellInfoNr;
+import android.telephony.CellInfoTdscdma;
 import android.telephony.CellInfoWcdma;
 import android.telephony.CellLocation;
+import android.telephony.CellSignalStrength;
 import android.telephony.CellSignalStrengthCdma;
 import android.telephony.CellSignalStrengthGsm;
 import android.telephony.CellSignalStrengthLte;
+import android.telephony.CellSignalStrengthTdscdma;
 import android.telephony.CellSignalStrengthWcdma;
 import android.telephony.NeighboringCellInfo;
 import android.telephony.PhoneStateListener;
 import android.telephony.SignalStrength;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.telephony.cdma.CdmaCellLocation;
 import android.telephony.gsm.GsmCellLocation;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import static android.Manifest.permission.ACCESS_COARSE_LOCATION;
+import static android.Manifest.permission.ACCESS_FINE_LOCATION;
 import static android.Manifest.permission.READ_PHONE_STATE;
 
 /**
@@ -55,18 +70,24 @@ import static android.Manifest.permission.READ_PHONE_STATE;
  * <p/>
  * Due to changes in APIs for cell retrieval, this class will only work on Android 4.2+
  * Support for earlier Android versions might be added later...
+ * <p/>
+ * On Android 10+, fresh cell info is requested asynchronously, earlier versions query it
+ * synchronously only if the cell info listener did not deliver data for a long time.
+ * <p/>
+ * On multi-SIM devices running Android 7.0+, cells of all active subscriptions are collected in
+ * parallel and merged into one set, see {@link Cell#getSubscriptionId()}.
  */
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
 public class CellBackendHelper extends AbstractBackendHelper {
     private final Listener listener;
     private final TelephonyManager telephonyManager;
     private final Set<Cell> cells = new HashSet<Cell>();
-    private PhoneStateListener phoneStateListener;
-    private boolean supportsCellInfoChanged = true;
+    private final Map<Cell, Cell> reportedCells = new HashMap<Cell, Cell>();
+    private List<Collector> collectors;
 
     public static final int MIN_UPDATE_INTERVAL = 30 * 1000;
     public static final int FALLBACK_UPDATE_INTERVAL = 5 * 60 * 1000;
-    private long lastScan = 0;
+    private int signalHysteresis = 0;
 
     /**
      * Create a new instance of {@link CellBackendHelper}. Call this in
@@ -76,26 +97,68 @@ public class CellBackendHelper extends AbstractBackendHelper {
      * @throws IllegalStateException    if android version is below 4.2
      */
     public CellBackendHelper(Context context, Listener listener) {
+        this(context, listener, true);
+    }
+
+    /**
+     * Create a new instance of {@link CellBackendHelper} that is only used via
+     * {@link #subscribe(Listener, long, Executor)}.
+     *
+     * @throws IllegalArgumentException if context is null.
+     * @throws IllegalStateException    if android version is below 4.2
+     */
+    public CellBackendHelper(Context context) {
+        this(context, null, false);
+    }
+
+    private CellBackendHelper(Context context, Listener listener, boolean listenerRequired) {
         super(context);
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1)
             throw new IllegalStateException("Requires Android 4.2+");
-        if (listener == null)
+        if (listenerRequired && listener == null)
             throw new IllegalArgumentException("listener must not be null");
         this.listener = listener;
         this.telephonyManager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
     }
 
-    private int getMcc() {
+    /**
+     * Subscribe to the cells seen by this helper, in addition to the listener passed to the
+     * constructor. Subscriptions share the receivers and scans of this helper.
+     *
+     * @param minInterval minimum time in milliseconds between two deliveries to the listener.
+     * @param executor    executor to call the listener on, or {@code null} to call it directly.
+     * @throws IllegalArgumentException if listener is null or minInterval is not positive.
+     */
+    public Subscription<Listener> subscribe(Listener listener, long minInterval, Executor executor) {
+        return addSubscription(listener, minInterval, executor);
+    }
+
+    /**
+     * Sets the minimum change of signal strength (in dB) of a single cell that is considered a
+     * change of the cell environment.
+     * <p/>
+     * If set, scans that see the same cells as last reported, with signal strengths that moved
+     * less than this, are not reported to the listener. Use this to avoid recomputing positions
+     * because of signal jitter.
+     * <p/>
+     * Default is {@code 0}, every scan is reported.
+     */
+    public synchronized void setSignalHysteresis(int signalHysteresis) {
+        this.signalHysteresis = signalHysteresis;
+        if (signalHysteresis <= 0) reportedCells.clear();
+    }
+
+    private static int getMcc(String networkOperator) {
         try {
-            return Integer.parseInt(telephonyManager.getNetworkOperator().substring(0, 3));
+            return Integer.parseInt(networkOperator.substring(0, 3));
         } catch (Exception e) {
             return -1;
         }
     }
 
-    private int getMnc() {
+    private static int getMnc(String networkOperator) {
         try {
-            return Integer.parseInt(telephonyManager.getNetworkOperator().substring(3));
+            return Integer.parseInt(networkOperator.substring(3));
         } catch (Exception e) {
             return -1;
         }
@@ -121,12 +184,16 @@ public class CellBackendHelper extends AbstractBackendHelper {
             case TelephonyManager.NETWORK_TYPE_EHRPD:
             case TelephonyManager.NETWORK_TYPE_IDEN:
                 return Cell.CellType.CDMA;
+            case TelephonyManager.NETWORK_TYPE_TD_SCDMA:
+                return Cell.CellType.TDSCDMA;
+            case TelephonyManager.NETWORK_TYPE_NR:
+                return Cell.CellType.NR;
         }
         return null;
     }
 
     @SuppressWarnings("ChainOfInstanceofChecks")
-    private Cell parseCellInfo(CellInfo info) {
+    private static Cell parseCellInfo(String networkOperator, CellInfo info) {
         try {
             if (info instanceof CellInfoGsm) {
                 CellIdentityGsm identity = ((CellInfoGsm) info).getCellIdentity();
@@ -137,7 +204,7 @@ public class CellBackendHelper extends AbstractBackendHelper {
             } else if (info instanceof CellInfoCdma) {
                 CellIdentityCdma identity = ((CellInfoCdma) info).getCellIdentity();
                 CellSignalStrengthCdma strength = ((CellInfoCdma) info).getCellSignalStrength();
-                return new Cell(Cell.CellType.CDMA, getMcc(), identity.getSystemId(),
+                return new Cell(Cell.CellType.CDMA, getMcc(networkOperator), identity.getSystemId(),
                         identity.getNetworkId(), identity.getBasestationId(), -1, strength.getDbm());
             } else {
                 return parceCellInfo18(info);
@@ -149,7 +216,7 @@ public class CellBackendHelper extends AbstractBackendHelper {
 
     @SuppressWarnings("ChainOfInstanceofChecks")
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
-    private Cell parceCellInfo18(CellInfo info) {
+    private static Cell parceCellInfo18(CellInfo info) {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) return null;
         if (info instanceof CellInfoWcdma) {
             CellIdentityWcdma identity = ((CellInfoWcdma) info).getCellIdentity();
@@ -164,37 +231,50 @@ public class CellBackendHelper extends AbstractBackendHelper {
             return new Cell(Cell.CellType.LTE, identity.getMcc(), identity.getMnc(),
                     identity.getTac(), identity.getCi(), identity.getPci(), strength.getDbm());
         }
+        return parseCellInfo29(info);
+    }
+
+    @SuppressWarnings("ChainOfInstanceofChecks")
+    @TargetApi(Build.VERSION_CODES.Q)
+    private static Cell parseCellInfo29(CellInfo info) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return null;
+        if (info instanceof CellInfoNr) {
+            CellIdentityNr identity = (CellIdentityNr) ((CellInfoNr) info).getCellIdentity();
+            if (identity.getMccString() == null || identity.getNci() == CellInfo.UNAVAILABLE_LONG) return null;
+            CellSignalStrength strength = ((CellInfoNr) info).getCellSignalStrength();
+            return new Cell(Cell.CellType.NR, Integer.parseInt(identity.getMccString()),
+                    Integer.parseInt(identity.getMncString()), identity.getTac(), identity.getNci(),
+                    identity.getPci(), strength.getDbm());
+        } else if (info instanceof CellInfoTdscdma) {
+            CellIdentityTdscdma identity = ((CellInfoTdscdma) info).getCellIdentity();
+            if (identity.getMccString() == null) return null;
+            CellSignalStrengthTdscdma strength = ((CellInfoTdscdma) info).getCellSignalStrength();
+            return new Cell(Cell.CellType.TDSCDMA, Integer.parseInt(identity.getMccString()),
+                    Integer.parseInt(identity.getMncString()), identity.getLac(), identity.getCid(),
+                    identity.getCpid(), strength.getDbm());
+        }
         return null;
     }
 
-    private Cell parseCellInfo(NeighboringCellInfo info) {
+    private static Cell parseCellInfo(String networkOperator, NeighboringCellInfo info) {
         try {
             if (getCellType(info.getNetworkType()) != Cell.CellType.GSM) return null;
-            return new Cell(Cell.CellType.GSM, getMcc(), getMnc(), info.getLac(), info.getCid(),
+            return new Cell(Cell.CellType.GSM, getMcc(networkOperator), getMnc(networkOperator), info.getLac(), info.getCid(),
                     info.getPsc(), info.getRssi());
         } catch (Exception ignored) {
         }
         return null;
     }
 
-    private void onCellsChanged(List<CellInfo> cellInfo) {
-        lastScan = System.currentTimeMillis();
-        if (loadCells(cellInfo)) {
-            listener.onCellsChanged(getCells());
-        }
-    }
-
     /**
      * This will fix empty MNC since Android 9 with 0-prefixed MNCs.
      * Issue: https://issuetracker.google.com/issues/113560852
      */
-    private void fixEmptyMnc(List<CellInfo> cellInfo) {
-        if (Build.VERSION.SDK_INT < 28 || cellInfo == null) {
+    private static void fixEmptyMnc(String networkOperator, List<CellInfo> cellInfo) {
+        if (Build.VERSION.SDK_INT < 28 || cellInfo == null || networkOperator == null) {
             return;
         }
 
-        String networkOperator = telephonyManager.getNetworkOperator();
-
         if (networkOperator.length() < 5 || networkOperator.charAt(3) != '0') {
             return;
         }
@@ -238,16 +318,15 @@ public class CellBackendHelper extends AbstractBackendHelper {
      */
     @SuppressWarnings({"ChainOfInstanceofChecks", "MagicNumber"})
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
-    private void fixAllCellInfo(List<CellInfo> cellInfo) {
-        if (cellInfo == null) return;
-        String networkOperator = telephonyManager.getNetworkOperator();
+    private static void fixAllCellInfo(String networkOperator, List<CellInfo> cellInfo) {
+        if (cellInfo == null || networkOperator == null) return;
         if (networkOperator.length() != 5) return;
         int realMnc = Integer.parseInt(networkOperator.substring(3));
         boolean theBug = false;
         for (CellInfo info : cellInfo) {
             if (info instanceof CellInfoCdma) return;
             if (info.isRegistered()) {
-                Cell cell = parseCellInfo(info);
+                Cell cell = parseCellInfo(networkOperator, info);
                 if (cell == null) continue;
                 int infoMnc = cell.getMnc();
                 if (infoMnc == (realMnc * 10 + 15)) {
@@ -280,7 +359,7 @@ public class CellBackendHelper extends AbstractBackendHelper {
         }
     }
 
-    private boolean hasCid(long cid) {
+    private static boolean hasCid(Collection<Cell> cells, long cid) {
         for (Cell cell : cells) {
             if (cell.getCid() == cid) return true;
         }
@@ -291,12 +370,12 @@ public class CellBackendHelper extends AbstractBackendHelper {
      * This is to support some broken implementations that do not support {@link TelephonyManager#getAllCellInfo()}
      */
     @SuppressWarnings("ChainOfInstanceofChecks")
-    private CellInfo fromCellLocation(CellLocation cellLocation) {
+    private static CellInfo fromCellLocation(String networkOperator, CellLocation cellLocation) {
         try {
             if (cellLocation instanceof GsmCellLocation) {
                 GsmCellLocation gsmCellLocation = (GsmCellLocation) cellLocation;
                 CellIdentityGsm identity = CellIdentityGsm.class.getConstructor(int.class, int.class, int.class, int.class)
-                        .newInstance(getMcc(), getMnc(), gsmCellLocation.getLac(), gsmCellLocation.getCid());
+                        .newInstance(getMcc(networkOperator), getMnc(networkOperator), gsmCellLocation.getLac(), gsmCellLocation.getCid());
                 CellSignalStrengthGsm strength = CellSignalStrengthGsm.class.newInstance();
                 CellInfoGsm info = CellInfoGsm.class.newInstance();
                 CellInfoGsm.class.getMethod("setCellIdentity", CellIdentityGsm.class).invoke(info, identity);
@@ -319,136 +398,299 @@ public class CellBackendHelper extends AbstractBackendHelper {
         return null;
     }
 
+    /**
+     * Parse the cell info of a single subscription. Operator dependent fixes use the network
+     * operator of the subscription (MCC and MNC, as reported by
+     * {@link TelephonyManager#getNetworkOperator()}), parsed cells are tagged with the
+     * subscription id.
+     */
     @SuppressWarnings("deprecation")
-    private synchronized boolean loadCells(List<CellInfo> cellInfo) {
-        cells.clear();
-        currentDataUsed = false;
+    private static List<Cell> parseCells(String networkOperator, int subscriptionId, List<CellInfo> cellInfo,
+                                         List<NeighboringCellInfo> neighboringCellInfo) {
+        List<Cell> scanned = new ArrayList<Cell>();
         try {
             if (cellInfo != null) {
-                fixEmptyMnc(cellInfo);
-                fixAllCellInfo(cellInfo);
+                fixEmptyMnc(networkOperator, cellInfo);
+                fixAllCellInfo(networkOperator, cellInfo);
                 for (CellInfo info : cellInfo) {
-                    Cell cell = parseCellInfo(info);
+                    Cell cell = parseCellInfo(networkOperator, info);
                     if (cell == null) continue;
-                    cells.add(cell);
+                    cell.subscriptionId = subscriptionId;
+                    cell.registered = info.isRegistered();
+                    scanned.add(cell);
                 }
             }
-            List<NeighboringCellInfo> neighboringCellInfo = telephonyManager.getNeighboringCellInfo();
             if (neighboringCellInfo != null) {
                 for (NeighboringCellInfo info : neighboringCellInfo) {
-                    if (!hasCid(info.getCid())) {
-                        Cell cell = parseCellInfo(info);
+                    if (!hasCid(scanned, info.getCid())) {
+                        Cell cell = parseCellInfo(networkOperator, info);
                         if (cell == null) continue;
-                        cells.add(cell);
+                        cell.subscriptionId = subscriptionId;
+                        scanned.add(cell);
                     }
                 }
             }
         } catch (Exception ignored) {
         }
+        return scanned;
+    }
+
+    private synchronized boolean loadCells(Collection<Cell> scanned) {
+        cells.clear();
+        cells.addAll(scanned);
         if (state == State.DISABLING)
             state = State.DISABLED;
-        switch (state) {
-            default:
-            case DISABLED:
-                return false;
-            case SCANNING:
-                state = State.WAITING;
+        boolean wasScanning = state == State.SCANNING;
+        if (wasScanning)
+            state = State.WAITING;
+        // The scan is complete even if it is not reported, the next update scans again
+        if (signalHysteresis > 0 && !hasChangedSinceReported())
+            return false;
+        currentDataUsed = false;
+        return wasScanning;
+    }
+
+    private boolean hasChangedSinceReported() {
+        if (cells.size() != reportedCells.size()) return true;
+        for (Cell cell : cells) {
+            Cell reported = reportedCells.get(cell);
+            if (reported == null || Math.abs((long) cell.getSignal() - reported.getSignal()) >= signalHysteresis)
                 return true;
         }
+        return false;
+    }
+
+    /**
+     * @return the cells of the last scan the device is registered to, without marking the scan as
+     * used.
+     */
+    synchronized Set<Cell> getServingCells() {
+        Set<Cell> serving = new HashSet<Cell>();
+        for (Cell cell : cells) {
+            if (cell.isRegistered()) serving.add(cell);
+        }
+        return serving;
     }
 
     public synchronized Set<Cell> getCells() {
         currentDataUsed = true;
+        if (signalHysteresis > 0) {
+            reportedCells.clear();
+            for (Cell cell : cells) {
+                reportedCells.put(cell, cell);
+            }
+        }
         return new HashSet<Cell>(cells);
     }
 
     /**
-     * Call this in {@link org.microg.nlp.api.LocationBackendService#onOpen()}.
+     * Active subscriptions are looked up on every start, so that SIM changes are picked up.
      */
     @Override
-    public synchronized void onOpen() {
-        super.onOpen();
+    protected void onStart() {
+        if (isReplaying()) {
+            // Collectors are added by onCellInfoReplayed()
+            collectors = new ArrayList<Collector>();
+            return;
+        }
+        if (collectors == null) collectors = createCollectors();
+        final List<Collector> openedCollectors = collectors;
+        getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CellBackendHelper.this) {
+                    // Closed, or closed and opened again, before we got here
+                    if (!isOpened() || collectors != openedCollectors) return;
+                    for (Collector collector : openedCollectors) {
+                        collector.listen();
+                    }
+                }
+            }
+        });
+    }
 
-        if (phoneStateListener == null) {
-            Handler mainHandler = new Handler(context.getMainLooper());
-            mainHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    phoneStateListener = new PhoneStateListener() {
+    /**
+     * Creates one collector per active subscription, so that serving and neighbor cells of all
+     * modems are seen on multi-SIM devices. Falls back to a single collector for the default
+     * subscription, if subscriptions can't be listed (Android before 7.0, missing permission).
+     */
+    private List<Collector> createCollectors() {
+        List<Collector> collectors = new ArrayList<Collector>();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            addSubscriptionCollectors(collectors);
+        }
+        if (collectors.isEmpty()) {
+            collectors.add(new Collector(telephonyManager, SubscriptionManager.INVALID_SUBSCRIPTION_ID));
+        }
+        return collectors;
+    }
 
-                        @Override
-                        public void onCellInfoChanged(List<CellInfo> cellInfo) {
-                            if (cellInfo != null && !cellInfo.isEmpty()) {
-                                onCellsChanged(cellInfo);
-                            } else if (supportsCellInfoChanged) {
-                                supportsCellInfoChanged = false;
-                                onSignalStrengthsChanged(null);
-                            }
-                        }
+    @TargetApi(Build.VERSION_CODES.N)
+    private void addSubscriptionCollectors(List<Collector> collectors) {
+        try {
+            SubscriptionManager subscriptionManager = context.getSystemService(SubscriptionManager.class);
+            if (subscriptionManager == null) return;
+            List<SubscriptionInfo> subscriptions = subscriptionManager.getActiveSubscriptionInfoList();
+            if (subscriptions == null) return;
+            for (SubscriptionInfo subscription : subscriptions) {
+                int subscriptionId = subscription.getSubscriptionId();
+                TelephonyManager subscriptionTelephonyManager = telephonyManager.createForSubscriptionId(subscriptionId);
+                if (subscriptionTelephonyManager != null) {
+                    collectors.add(new Collector(subscriptionTelephonyManager, subscriptionId));
+                }
+            }
+        } catch (Exception e) {
+            // Missing permission
+            collectors.clear();
+        }
+    }
 
-                        @Override
-                        public void onSignalStrengthsChanged(SignalStrength signalStrength) {
-                            if (!supportsCellInfoChanged) {
-                                fallbackScan();
-                            }
-                        }
-                    };
-                    registerPhoneStateListener();
+    /**
+     * Called by {@link ScanReplayer} with the recorded cells of a subscription, in place of the
+     * system.
+     */
+    void onCellsReplayed(int subscriptionId, List<Cell> cells) {
+        Collector collector = getReplayCollector(subscriptionId);
+        if (collector != null) onCollectorScanned(collector, cells);
+    }
+
+    /**
+     * Called in replay mode with cell info of a subscription as reported by the system, in place
+     * of the system. The cell info is parsed exactly like the one of the system.
+     */
+    @SuppressWarnings("deprecation")
+    void onCellInfoReplayed(int subscriptionId, String networkOperator, List<CellInfo> cellInfo,
+                            List<NeighboringCellInfo> neighboringCellInfo) {
+        Collector collector = getReplayCollector(subscriptionId);
+        if (collector != null) collector.onCellsChanged(networkOperator, cellInfo, neighboringCellInfo);
+    }
+
+    /**
+     * @return the collector of the subscription, created on first use, or {@code null} if closed.
+     */
+    private synchronized Collector getReplayCollector(int subscriptionId) {
+        if (collectors == null) return null;
+        for (Collector collector : collectors) {
+            if (collector.subscriptionId == subscriptionId) return collector;
+        }
+        Collector collector = new Collector(null, subscriptionId);
+        collectors.add(collector);
+        return collector;
+    }
+
+    /**
+     * Merges the latest cells of all collectors into one observation set, after one of them
+     * scanned.
+     */
+    private void onCollectorScanned(Collector collector, List<Cell> scanned) {
+        synchronized (this) {
+            if (recorder != null) recorder.recordCells(collector.subscriptionId, scanned);
+            collector.lastScan = System.currentTimeMillis();
+            collector.cells = scanned;
+            // Collector was dropped by onClose()
+            if (collectors == null || !collectors.contains(collector)) return;
+            if (!loadCells(mergeCells())) return;
+        }
+        dispatchCells();
+    }
+
+    private void dispatchCells() {
+        final Set<Cell> cells = getCells();
+        if (listener != null) {
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onCellsChanged(cells);
                 }
             });
-        } else {
-            registerPhoneStateListener();
         }
+        if (!hasSubscriptions()) return;
+        final Set<Cell> shared = Collections.unmodifiableSet(new HashSet<Cell>(cells));
+        dispatchToSubscriptions(new Delivery<Listener>() {
+            @Override
+            public void deliver(Listener listener) {
+                listener.onCellsChanged(shared);
+            }
+        });
     }
 
-    @SuppressWarnings("deprecation")
-    private synchronized void fallbackScan() {
-        if (lastScan + MIN_UPDATE_INTERVAL > System.currentTimeMillis()) return;
-        List<CellInfo> allCellInfo = telephonyManager.getAllCellInfo();
-        if ((allCellInfo == null || allCellInfo.isEmpty()) && telephonyManager.getNetworkType() > 0) {
-            allCellInfo = new ArrayList<CellInfo>();
-            CellLocation cellLocation = telephonyManager.getCellLocation();
-            CellInfo cellInfo = fromCellLocation(cellLocation);
-            if (cellInfo != null) allCellInfo.add(cellInfo);
+    /**
+     * Cells seen by several modems are only kept once, as reported by the first collector.
+     */
+    private Collection<Cell> mergeCells() {
+        if (collectors.size() == 1) return collectors.get(0).cells;
+        Set<Cell> merged = new LinkedHashSet<Cell>();
+        for (Collector collector : collectors) {
+            merged.addAll(collector.cells);
         }
-        onCellsChanged(allCellInfo);
+        return merged;
     }
 
-    private synchronized void registerPhoneStateListener() {
+    /**
+     * TelephonyManager.getNeighboringCellInfo() was removed from the SDK in Android 10, and did not
+     * return data on most devices for long before.
+     */
+    @SuppressWarnings({"deprecation", "unchecked"})
+    private static List<NeighboringCellInfo> getNeighboringCellInfo(TelephonyManager telephonyManager) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) return null;
         try {
-            telephonyManager.listen(phoneStateListener,
-                    PhoneStateListener.LISTEN_CELL_INFO
-                            | PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+            return (List<NeighboringCellInfo>) TelephonyManager.class.getMethod("getNeighboringCellInfo")
+                    .invoke(telephonyManager);
         } catch (Exception e) {
-            // Can't listen
-            phoneStateListener = null;
+            return null;
         }
     }
 
-    /**
-     * Call this in {@link org.microg.nlp.api.LocationBackendService#onClose()}.
-     */
+    private Executor getCallbackExecutor() {
+        final Handler handler = getHandler();
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
     @Override
-    public synchronized void onClose() {
-        super.onClose();
-        if (phoneStateListener != null)
-            telephonyManager.listen(phoneStateListener, PhoneStateListener.LISTEN_NONE);
+    protected void onStop() {
+        if (collectors != null) {
+            for (Collector collector : collectors) {
+                collector.unlisten();
+            }
+            collectors = null;
+        }
     }
 
     @Override
-    public synchronized void onUpdate() {
-        if (!currentDataUsed) {
-            listener.onCellsChanged(getCells());
-        } else {
-            state = State.SCANNING;
-            if (lastScan + FALLBACK_UPDATE_INTERVAL < System.currentTimeMillis()) {
-                fallbackScan();
+    public void onUpdate() {
+        List<Collector> scanCollectors;
+        synchronized (this) {
+            if (!isOpened()) return;
+            if (currentDataUsed) {
+                state = State.SCANNING;
+                scanCollectors = collectors;
+            } else {
+                scanCollectors = null;
+            }
+        }
+        if (scanCollectors == null) {
+            dispatchCells();
+        } else if (!isReplaying()) {
+            for (Collector collector : scanCollectors) {
+                collector.update();
             }
         }
     }
 
+    /**
+     * Since Android 10, {@link TelephonyManager#requestCellInfoUpdate} and
+     * {@link TelephonyManager#getAllCellInfo()} need fine location.
+     */
     @Override
     public String[] getRequiredPermissions() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return new String[]{READ_PHONE_STATE, ACCESS_COARSE_LOCATION, ACCESS_FINE_LOCATION};
+        }
         return new String[]{READ_PHONE_STATE, ACCESS_COARSE_LOCATION};
     }
 
@@ -456,7 +698,156 @@ public class CellBackendHelper extends AbstractBackendHelper {
         void onCellsChanged(Set<Cell> cells);
     }
 
+    /**
+     * Collects the cells seen by the modem of a single subscription. All state is guarded by the
+     * lock of the enclosing helper.
+     */
+    private class Collector {
+        private final TelephonyManager telephonyManager;
+        private final int subscriptionId;
+        private PhoneStateListener phoneStateListener;
+        private boolean supportsCellInfoChanged = true;
+        private boolean cellInfoRequested = false;
+        private long lastScan = 0;
+        private List<Cell> cells = new ArrayList<Cell>();
+
+        Collector(TelephonyManager telephonyManager, int subscriptionId) {
+            this.telephonyManager = telephonyManager;
+            this.subscriptionId = subscriptionId;
+        }
+
+        private void onCellsChanged(List<CellInfo> cellInfo) {
+            onCellsChanged(telephonyManager.getNetworkOperator(), cellInfo, getNeighboringCellInfo(telephonyManager));
+        }
+
+        @SuppressWarnings("deprecation")
+        private void onCellsChanged(String networkOperator, List<CellInfo> cellInfo,
+                                    List<NeighboringCellInfo> neighboringCellInfo) {
+            onCollectorScanned(this, parseCells(networkOperator, subscriptionId, cellInfo, neighboringCellInfo));
+        }
+
+        private void update() {
+            long lastScan;
+            synchronized (CellBackendHelper.this) {
+                lastScan = this.lastScan;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                if (lastScan + MIN_UPDATE_INTERVAL < System.currentTimeMillis()) {
+                    requestCellInfoUpdate();
+                }
+            } else if (lastScan + FALLBACK_UPDATE_INTERVAL < System.currentTimeMillis()) {
+                fallbackScan();
+            }
+        }
+
+        private void listen() {
+            if (phoneStateListener == null) {
+                createPhoneStateListener();
+            }
+            try {
+                telephonyManager.listen(phoneStateListener,
+                        PhoneStateListener.LISTEN_CELL_INFO
+                                | PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+            } catch (Exception e) {
+                // Can't listen
+                phoneStateListener = null;
+            }
+        }
+
+        private void unlisten() {
+            if (phoneStateListener != null)
+                telephonyManager.listen(phoneStateListener, PhoneStateListener.LISTEN_NONE);
+        }
+
+        private void createPhoneStateListener() {
+            phoneStateListener = new PhoneStateListener() {
+
+                @Override
+                public void onCellInfoChanged(List<CellInfo> cellInfo) {
+                    if (cellInfo != null && !cellInfo.isEmpty()) {
+                        onCellsChanged(cellInfo);
+                    } else if (supportsCellInfoChanged) {
+                        supportsCellInfoChanged = false;
+                        onSignalStrengthsChanged(null);
+                    }
+                }
+
+                @Override
+                public void onSignalStrengthsChanged(SignalStrength signalStrength) {
+                    if (!supportsCellInfoChanged) {
+                        fallbackScan();
+                    }
+                }
+            };
+        }
+
+        @SuppressWarnings("deprecation")
+        private void fallbackScan() {
+            List<CellInfo> allCellInfo;
+            synchronized (CellBackendHelper.this) {
+                if (lastScan + MIN_UPDATE_INTERVAL > System.currentTimeMillis()) return;
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                    requestCellInfoUpdate();
+                    return;
+                }
+                allCellInfo = telephonyManager.getAllCellInfo();
+                if ((allCellInfo == null || allCellInfo.isEmpty()) && telephonyManager.getNetworkType() > 0) {
+                    allCellInfo = new ArrayList<CellInfo>();
+                    CellLocation cellLocation = telephonyManager.getCellLocation();
+                    CellInfo cellInfo = fromCellLocation(telephonyManager.getNetworkOperator(), cellLocation);
+                    if (cellInfo != null) allCellInfo.add(cellInfo);
+                }
+            }
+            onCellsChanged(allCellInfo);
+        }
+
+        /**
+         * Request fresh cell info from the modem, without blocking the calling thread. Requests
+         * of all collectors run in parallel.
+         */
+        @TargetApi(Build.VERSION_CODES.Q)
+        private void requestCellInfoUpdate() {
+            synchronized (CellBackendHelper.this) {
+                if (cellInfoRequested) return;
+                cellInfoRequested = true;
+                try {
+                    telephonyManager.requestCellInfoUpdate(getCallbackExecutor(), new TelephonyManager.CellInfoCallback() {
+                        @Override
+                        public void onCellInfo(List<CellInfo> cellInfo) {
+                            synchronized (CellBackendHelper.this) {
+                                cellInfoRequested = false;
+                            }
+                            onCellsChanged(cellInfo);
+                        }
+
+                        @Override
+                        public void onError(int errorCode, Throwable detail) {
+                            synchronized (CellBackendHelper.this) {
+                                cellInfoRequested = false;
+                            }
+                        }
+                    });
+                } catch (Exception e) {
+                    // Missing permission
+                    cellInfoRequested = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * A cell observation.
+     * <p/>
+     * Equality is based on the identity of the cell (type, MCC, MNC, LAC, CID and PSC) only, the
+     * signal strength is a measurement and does not affect {@link #equals(Object)}. The same is
+     * true for the subscription that observed the cell.
+     */
     public static class Cell {
+        /**
+         * NR cell identities (NCI) are 36 bit.
+         */
+        private static final long MAX_NCI = (1L << 36) - 1;
+
         private CellType type;
         private int mcc;
         private int mnc;
@@ -464,35 +855,57 @@ public class CellBackendHelper extends AbstractBackendHelper {
         private long cid;
         private int psc;
         private int signal;
+        private int subscriptionId;
+        private boolean registered;
 
         public Cell(CellType type, int mcc, int mnc, int lac, long cid, int psc, int signal) {
+            this(type, mcc, mnc, lac, cid, psc, signal, -1);
+        }
+
+        Cell(CellType type, int mcc, int mnc, int lac, long cid, int psc, int signal, int subscriptionId,
+             boolean registered) {
+            this(type, mcc, mnc, lac, cid, psc, signal, subscriptionId);
+            this.registered = registered;
+        }
+
+        public Cell(CellType type, int mcc, int mnc, int lac, long cid, int psc, int signal, int subscriptionId) {
             if (type == null)
                 throw new IllegalArgumentException("Each cell has an type!");
             this.type = type;
             boolean cdma = type == CellType.CDMA;
+            boolean nr = type == CellType.NR;
             if (mcc < 0 || mcc > 999)
                 throw new IllegalArgumentException("Invalid MCC: " + mcc);
             this.mcc = mcc;
             if (cdma ? (mnc < 1 || mnc > 32767) : (mnc < 0 || mnc > 999))
                 throw new IllegalArgumentException("Invalid MNC: " + mnc);
             this.mnc = mnc;
-            if (lac < 1 || lac > (cdma ? 65534 : 65533))
+            if (lac < 1 || lac > (nr ? 16777214 : cdma ? 65534 : 65533))
                 throw new IllegalArgumentException("Invalid LAC: " + lac);
             this.lac = lac;
-            if (cid < 0)
+            if (cid < 0 || (nr && cid > MAX_NCI))
                 throw new IllegalArgumentException("Invalid CID: " + cid);
             this.cid = cid;
             this.psc = psc;
             this.signal = signal;
+            this.subscriptionId = subscriptionId;
         }
 
         /**
-         * @return RSCP for UMTS, RSRP for LTE, RSSI for GSM and CDMA
+         * @return RSCP for UMTS and TD-SCDMA, RSRP for LTE, SS-RSRP for NR, RSSI for GSM and CDMA
          */
         public int getSignal() {
             return signal;
         }
 
+        /**
+         * @return whether the device is registered to this cell, as far as known. Like the signal,
+         * this does not affect {@link #equals(Object)}.
+         */
+        public boolean isRegistered() {
+            return registered;
+        }
+
         public CellType getType() {
             return type;
         }
@@ -517,6 +930,13 @@ public class CellBackendHelper extends AbstractBackendHelper {
             return psc;
         }
 
+        /**
+         * @return id of the subscription whose modem observed this cell, or -1 if unknown
+         */
+        public int getSubscriptionId() {
+            return subscriptionId;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -529,7 +949,6 @@ public class CellBackendHelper extends AbstractBackendHelper {
             if (mcc != cell.mcc) return false;
             if (mnc != cell.mnc) return false;
             if (psc != cell.psc) return false;
-            if (signal != cell.signal) return false;
             if (type != cell.type) return false;
 
             return true;
@@ -543,7 +962,6 @@ public class CellBackendHelper extends AbstractBackendHelper {
             result = 31 * result + lac;
             result = 31 * result + (int) (cid ^ (cid >>> 32));
             result = 31 * result + psc;
-            result = 31 * result + signal;
             return result;
         }
 
@@ -557,9 +975,10 @@ public class CellBackendHelper extends AbstractBackendHelper {
                     ", cid=" + cid +
                     (psc != -1 ? (", psc=" + psc) : "") +
                     ", signal=" + signal +
+                    (subscriptionId != -1 ? (", subscriptionId=" + subscriptionId) : "") +
                     '}';
         }
 
-        public enum CellType {GSM, UMTS, LTE, CDMA}
+        public enum CellType {GSM, UMTS, LTE, CDMA, NR, TDSCDMA}
     }
 }
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.location.Address;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A list of addresses, limited to selected fields, that can be sent to another process at a
+ * fraction of the cost of a list of {@link Address}.
+ * <p/>
+ * Only the fields selected by the field mask (a combination of the {@code FIELD_*} constants) are
+ * kept. Each distinct string is stored only once in a string table, the addresses refer to it by
+ * index. Locale and extras of the addresses are not kept.
+ */
+public class CompactAddressList implements Parcelable {
+    public static final int FIELD_FEATURE_NAME = 1;
+    public static final int FIELD_ADMIN_AREA = 1 << 1;
+    public static final int FIELD_SUB_ADMIN_AREA = 1 << 2;
+    public static final int FIELD_LOCALITY = 1 << 3;
+    public static final int FIELD_SUB_LOCALITY = 1 << 4;
+    public static final int FIELD_THOROUGHFARE = 1 << 5;
+    public static final int FIELD_SUB_THOROUGHFARE = 1 << 6;
+    public static final int FIELD_PREMISES = 1 << 7;
+    public static final int FIELD_POSTAL_CODE = 1 << 8;
+    public static final int FIELD_COUNTRY_CODE = 1 << 9;
+    public static final int FIELD_COUNTRY_NAME = 1 << 10;
+    public static final int FIELD_PHONE = 1 << 11;
+    public static final int FIELD_URL = 1 << 12;
+    public static final int FIELD_ADDRESS_LINES = 1 << 13;
+    public static final int FIELD_LOCATION = 1 << 14;
+
+    /**
+     * Single string fields, in the order their references are stored.
+     */
+    private static final int STRING_FIELDS = 13;
+
+    private final int fields;
+    private final int size;
+    private final String[] strings;
+    /**
+     * For each address, the string table index of each selected single string field, or -1.
+     */
+    private final int[] references;
+    /**
+     * For each address, the number of address lines followed by their string table indices.
+     */
+    private final int[] lines;
+    private final double[] locations;
+
+    /**
+     * @param fields combination of the {@code FIELD_*} constants.
+     */
+    public CompactAddressList(List<Address> addresses, int fields) {
+        this.fields = fields;
+        this.size = addresses == null ? 0 : addresses.size();
+        int stringFields = Integer.bitCount(fields & ((1 << STRING_FIELDS) - 1));
+        List<String> strings = new ArrayList<String>();
+        Map<String, Integer> indices = new HashMap<String, Integer>();
+        this.references = new int[size * stringFields];
+        List<Integer> lines = new ArrayList<Integer>();
+        this.locations = (fields & FIELD_LOCATION) != 0 ? new double[size * 2] : new double[0];
+
+        for (int i = 0; i < size; i++) {
+            Address address = addresses.get(i);
+            int reference = i * stringFields;
+            for (int field = 0; field < STRING_FIELDS; field++) {
+                if ((fields & (1 << field)) == 0) continue;
+                references[reference++] = intern(strings, indices, getString(address, 1 << field));
+            }
+            if ((fields & FIELD_ADDRESS_LINES) != 0) {
+                int count = address.getMaxAddressLineIndex() + 1;
+                lines.add(count);
+                for (int line = 0; line < count; line++) {
+                    lines.add(intern(strings, indices, address.getAddressLine(line)));
+                }
+            }
+            if ((fields & FIELD_LOCATION) != 0) {
+                locations[i * 2] = address.hasLatitude() ? address.getLatitude() : Double.NaN;
+                locations[i * 2 + 1] = address.hasLongitude() ? address.getLongitude() : Double.NaN;
+            }
+        }
+
+        this.strings = strings.toArray(new String[strings.size()]);
+        this.lines = new int[lines.size()];
+        for (int i = 0; i < this.lines.length; i++) {
+            this.lines[i] = lines.get(i);
+        }
+    }
+
+    private CompactAddressList(Parcel in) {
+        fields = in.readInt();
+        size = in.readInt();
+        strings = in.createStringArray();
+        references = in.createIntArray();
+        lines = in.createIntArray();
+        locations = in.createDoubleArray();
+    }
+
+    private static int intern(List<String> strings, Map<String, Integer> indices, String string) {
+        if (string == null) return -1;
+        Integer index = indices.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.add(string);
+            indices.put(string, index);
+        }
+        return index;
+    }
+
+    private static String getString(Address address, int field) {
+        switch (field) {
+            case FIELD_FEATURE_NAME:
+                return address.getFeatureName();
+            case FIELD_ADMIN_AREA:
+                return address.getAdminArea();
+            case FIELD_SUB_ADMIN_AREA:
+                return address.getSubAdminArea();
+            case FIELD_LOCALITY:
+                return address.getLocality();
+            case FIELD_SUB_LOCALITY:
+                return address.getSubLocality();
+            case FIELD_THOROUGHFARE:
+                return address.getThoroughfare();
+            case FIELD_SUB_THOROUGHFARE:
+                return address.getSubThoroughfare();
+            case FIELD_PREMISES:
+                return address.getPremises();
+            case FIELD_POSTAL_CODE:
+                return address.getPostalCode();
+            case FIELD_COUNTRY_CODE:
+                return address.getCountryCode();
+            case FIELD_COUNTRY_NAME:
+                return address.getCountryName();
+            case FIELD_PHONE:
+                return address.getPhone();
+            case FIELD_URL:
+                return address.getUrl();
+        }
+        return null;
+    }
+
+    private static void setString(Address address, int field, String value) {
+        switch (field) {
+            case FIELD_FEATURE_NAME:
+                address.setFeatureName(value);
+                break;
+            case FIELD_ADMIN_AREA:
+                address.setAdminArea(value);
+                break;
+            case FIELD_SUB_ADMIN_AREA:
+                address.setSubAdminArea(value);
+                break;
+            case FIELD_LOCALITY:
+                address.setLocality(value);
+                break;
+            case FIELD_SUB_LOCALITY:
+                address.setSubLocality(value);
+                break;
+            case FIELD_THOROUGHFARE:
+                address.setThoroughfare(value);
+                break;
+            case FIELD_SUB_THOROUGHFARE:
+                address.setSubThoroughfare(value);
+                break;
+            case FIELD_PREMISES:
+                address.setPremises(value);
+                break;
+            case FIELD_POSTAL_CODE:
+                address.setPostalCode(value);
+                break;
+            case FIELD_COUNTRY_CODE:
+                address.setCountryCode(value);
+                break;
+            case FIELD_COUNTRY_NAME:
+                address.setCountryName(value);
+                break;
+            case FIELD_PHONE:
+                address.setPhone(value);
+                break;
+            case FIELD_URL:
+                address.setUrl(value);
+                break;
+        }
+    }
+
+    /**
+     * @return the fields kept in this list.
+     */
+    public int getFields() {
+        return fields;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param field one of the {@code FIELD_*} constants for single string fields.
+     * @return the value of the field for the address at the given index, or {@code null} if not
+     * set or not kept.
+     */
+    public String getString(int index, int field) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Invalid index: " + index);
+        if ((fields & field) == 0 || Integer.bitCount(field) != 1 || field >= (1 << STRING_FIELDS))
+            return null;
+        int stringFields = Integer.bitCount(fields & ((1 << STRING_FIELDS) - 1));
+        int reference = references[index * stringFields + Integer.bitCount(fields & (field - 1))];
+        return reference < 0 ? null : strings[reference];
+    }
+
+    /**
+     * @return latitude of the address at the given index, or {@link Double#NaN} if not set or not
+     * kept.
+     */
+    public double getLatitude(int index) {
+        return (fields & FIELD_LOCATION) != 0 ? locations[index * 2] : Double.NaN;
+    }
+
+    /**
+     * @return longitude of the address at the given index, or {@link Double#NaN} if not set or not
+     * kept.
+     */
+    public double getLongitude(int index) {
+        return (fields & FIELD_LOCATION) != 0 ? locations[index * 2 + 1] : Double.NaN;
+    }
+
+    /**
+     * @return the addresses, with only the kept fields set.
+     */
+    public List<Address> toAddresses(Locale locale) {
+        List<Address> addresses = new ArrayList<Address>(size);
+        int line = 0;
+        for (int i = 0; i < size; i++) {
+            Address address = new Address(locale);
+            for (int field = 0; field < STRING_FIELDS; field++) {
+                String value = getString(i, 1 << field);
+                if (value != null) setString(address, 1 << field, value);
+            }
+            if ((fields & FIELD_ADDRESS_LINES) != 0) {
+                int count = lines[line++];
+                for (int j = 0; j < count; j++) {
+                    int reference = lines[line++];
+                    address.setAddressLine(j, reference < 0 ? null : strings[reference]);
+                }
+            }
+            if (!Double.isNaN(getLatitude(i))) address.setLatitude(getLatitude(i));
+            if (!Double.isNaN(getLongitude(i))) address.setLongitude(getLongitude(i));
+            addresses.add(address);
+        }
+        return addresses;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(fields);
+        dest.writeInt(size);
+        dest.writeStringArray(strings);
+        dest.writeIntArray(references);
+        dest.writeIntArray(lines);
+        dest.writeDoubleArray(locations);
+    }
+
+    public static final Creator<CompactAddressList> CREATOR = new Creator<CompactAddressList>() {
+        @Override
+        public CompactAddressList createFromParcel(Parcel source) {
+            return new CompactAddressList(source);
+        }
+
+        @Override
+        public CompactAddressList[] newArray(int size) {
+            return new CompactAddressList[size];
+        }
+    };
+}
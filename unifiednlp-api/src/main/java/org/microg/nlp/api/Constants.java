@@ -26,10 +26,27 @@ public class Constants {
     public static final String LOCATION_EXTRA_BACKEND_PROVIDER = "SERVICE_BACKEND_PROVIDER";
     public static final String LOCATION_EXTRA_BACKEND_COMPONENT = "SERVICE_BACKEND_COMPONENT";
     public static final String LOCATION_EXTRA_OTHER_BACKENDS = "OTHER_BACKEND_RESULTS";
+    public static final String REQUEST_EXTRA_INTERVAL = "org.microg.nlp.REQUEST_INTERVAL";
+    public static final String REQUEST_EXTRA_ACCURACY = "org.microg.nlp.REQUEST_ACCURACY";
+    public static final String REQUEST_EXTRA_POWER = "org.microg.nlp.REQUEST_POWER";
     public static final String METADATA_BACKEND_SETTINGS_ACTIVITY = "org.microg.nlp.BACKEND_SETTINGS_ACTIVITY";
     public static final String METADATA_BACKEND_ABOUT_ACTIVITY = "org.microg.nlp.BACKEND_ABOUT_ACTIVITY";
     public static final String METADATA_BACKEND_INIT_ACTIVITY = "org.microg.nlp.BACKEND_INIT_ACTIVITY";
     public static final String METADATA_BACKEND_SUMMARY = "org.microg.nlp.BACKEND_SUMMARY";
     public static final String METADATA_API_VERSION = "org.microg.nlp.API_VERSION";
-    public static final String API_VERSION = "2";
+    public static final String METADATA_BACKEND_LATENCY = "org.microg.nlp.BACKEND_LATENCY";
+    public static final String METADATA_BACKEND_POWER = "org.microg.nlp.BACKEND_POWER";
+    public static final String METADATA_BACKEND_SOURCES = "org.microg.nlp.BACKEND_SOURCES";
+    public static final String METADATA_BACKEND_MIN_INTERVAL = "org.microg.nlp.BACKEND_MIN_INTERVAL";
+    /**
+     * Version of the backend interfaces implemented by this library, declared by backends in
+     * their manifest as {@link #METADATA_API_VERSION}. Version 3 added
+     * {@link LocationBackend#setRequest(android.os.Bundle)},
+     * {@link GeocoderBackend#getFromLocationCompact(double, double, int, String, int)} and
+     * {@link GeocoderBackend#getFromLocationNameCompact(String, int, double, double, double, double, String, int)}.
+     * Backends declaring an older version don't implement them, so hosts must check the version
+     * of a backend (see {@link VersionUtil#getPackageApiVersion(android.content.Context, String)})
+     * before calling them.
+     */
+    public static final String API_VERSION = "3";
 }
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.location.Location;
+import android.os.Build;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Remembers the locations computed for recent scans, so that scans at a place seen before can
+ * reuse the result instead of resolving and averaging all emitters again.
+ * <p/>
+ * Scans are compared by their fingerprint, the strongest Wi-Fis and cells of the scan. A cached
+ * location is reused if the Jaccard similarity of its fingerprint and the fingerprint of the new
+ * scan (shared emitters divided by all emitters of both) is at least the threshold and it is not
+ * older than the max age.
+ * <p/>
+ * Usage in a backend:
+ * <pre>
+ * Location location = cache.get(wiFis, cells);
+ * if (location == null) {
+ *     location = calculateLocation(wiFis, cells);
+ *     cache.put(wiFis, cells, location);
+ * }
+ * report(location);
+ * </pre>
+ */
+public class FingerprintLocationCache {
+    private final LinkedList<Entry> entries = new LinkedList<Entry>();
+
+    private float threshold = 0.7f;
+    private long maxAge = 10 * 60 * 1000;
+    private int capacity = 16;
+    private int maxWiFis = 8;
+    private int maxCells = 3;
+
+    private int hits;
+    private int misses;
+    private int staleEntries;
+
+    /**
+     * Sets the minimum Jaccard similarity, between {@code 0} (exclusive) and {@code 1}, for a
+     * cached location to be reused. Lower values give more hits, but less precise locations.
+     * <p/>
+     * Default is {@code 0.7}.
+     */
+    public synchronized void setThreshold(float threshold) {
+        if (threshold <= 0 || threshold > 1)
+            throw new IllegalArgumentException("threshold must be in (0, 1]");
+        this.threshold = threshold;
+    }
+
+    /**
+     * Sets the time in milliseconds after which cached locations are no longer reused.
+     * <p/>
+     * Default is {@code 600000}.
+     */
+    public synchronized void setMaxAge(long maxAge) {
+        if (maxAge <= 0)
+            throw new IllegalArgumentException("maxAge must be positive");
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Sets the number of locations remembered. The least recently used ones are dropped first.
+     * <p/>
+     * Default is {@code 16}.
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        while (entries.size() > capacity) {
+            entries.removeLast();
+        }
+    }
+
+    /**
+     * Sets the number of strongest Wi-Fis and cells that make up a fingerprint. Changing this
+     * drops all cached locations.
+     * <p/>
+     * Default is {@code 8} Wi-Fis and {@code 3} cells.
+     */
+    public synchronized void setFingerprintSize(int maxWiFis, int maxCells) {
+        if (maxWiFis < 0 || maxCells < 0 || maxWiFis + maxCells == 0)
+            throw new IllegalArgumentException("Fingerprints must not be empty");
+        this.maxWiFis = maxWiFis;
+        this.maxCells = maxCells;
+        entries.clear();
+    }
+
+    /**
+     * @param wiFis Wi-Fis of the scan, or {@code null}.
+     * @param cells cells of the scan, or {@code null}.
+     * @return a copy of the cached location for the most similar fingerprint, with the current
+     * time and elapsed realtime, or {@code null} if none is similar enough.
+     */
+    public synchronized Location get(Collection<WiFiBackendHelper.WiFi> wiFis,
+                                     Collection<CellBackendHelper.Cell> cells) {
+        Fingerprint fingerprint = getFingerprint(wiFis, cells);
+        long now = SystemClock.elapsedRealtime();
+        Entry best = null;
+        float bestSimilarity = 0;
+        for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
+            Entry entry = iterator.next();
+            if (now - entry.time > maxAge) {
+                iterator.remove();
+                staleEntries++;
+                continue;
+            }
+            float similarity = getSimilarity(fingerprint, entry.fingerprint);
+            if (similarity >= threshold && similarity > bestSimilarity) {
+                best = entry;
+                bestSimilarity = similarity;
+            }
+        }
+        if (best == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        entries.remove(best);
+        entries.addFirst(best);
+        Location location = new Location(best.location);
+        location.setTime(System.currentTimeMillis());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+        }
+        return location;
+    }
+
+    /**
+     * Remember the location computed for a scan.
+     */
+    public synchronized void put(Collection<WiFiBackendHelper.WiFi> wiFis,
+                                 Collection<CellBackendHelper.Cell> cells, Location location) {
+        if (location == null) return;
+        Fingerprint fingerprint = getFingerprint(wiFis, cells);
+        if (fingerprint.isEmpty()) return;
+        for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().fingerprint.equals(fingerprint)) iterator.remove();
+        }
+        entries.addFirst(new Entry(fingerprint, new Location(location), SystemClock.elapsedRealtime()));
+        while (entries.size() > capacity) {
+            entries.removeLast();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Jaccard similarity of two fingerprints, {@code 0} if both are empty.
+     */
+    static float getSimilarity(Fingerprint a, Fingerprint b) {
+        if (a.isEmpty() && b.isEmpty()) return 0;
+        int shared = countShared(a.wiFis, b.wiFis) + countShared(a.cells, b.cells);
+        return (float) shared / (a.size() + b.size() - shared);
+    }
+
+    private static <T> int countShared(Set<T> a, Set<T> b) {
+        Set<T> smaller = a.size() <= b.size() ? a : b;
+        Set<T> larger = smaller == a ? b : a;
+        int shared = 0;
+        for (T emitter : smaller) {
+            if (larger.contains(emitter)) shared++;
+        }
+        return shared;
+    }
+
+    /**
+     * The MAC addresses of the strongest Wi-Fis and the strongest cells.
+     */
+    private Fingerprint getFingerprint(Collection<WiFiBackendHelper.WiFi> wiFis,
+                                       Collection<CellBackendHelper.Cell> cells) {
+        Fingerprint fingerprint = new Fingerprint();
+        if (wiFis != null && maxWiFis > 0) {
+            List<WiFiBackendHelper.WiFi> sorted = new ArrayList<WiFiBackendHelper.WiFi>(wiFis);
+            Collections.sort(sorted, BY_RSSI);
+            for (int i = 0; i < sorted.size() && i < maxWiFis; i++) {
+                fingerprint.wiFis.add(sorted.get(i).getMac());
+            }
+        }
+        if (cells != null && maxCells > 0) {
+            List<CellBackendHelper.Cell> sorted = new ArrayList<CellBackendHelper.Cell>(cells);
+            Collections.sort(sorted, BY_SIGNAL);
+            for (int i = 0; i < sorted.size() && i < maxCells; i++) {
+                fingerprint.cells.add(sorted.get(i));
+            }
+        }
+        return fingerprint;
+    }
+
+    private static final Comparator<WiFiBackendHelper.WiFi> BY_RSSI = new Comparator<WiFiBackendHelper.WiFi>() {
+        @Override
+        public int compare(WiFiBackendHelper.WiFi lhs, WiFiBackendHelper.WiFi rhs) {
+            return rhs.getRssi() < lhs.getRssi() ? -1 : (rhs.getRssi() == lhs.getRssi() ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<CellBackendHelper.Cell> BY_SIGNAL = new Comparator<CellBackendHelper.Cell>() {
+        @Override
+        public int compare(CellBackendHelper.Cell lhs, CellBackendHelper.Cell rhs) {
+            int lhsSignal = getSignal(lhs);
+            int rhsSignal = getSignal(rhs);
+            return rhsSignal < lhsSignal ? -1 : (rhsSignal == lhsSignal ? 0 : 1);
+        }
+    };
+
+    /**
+     * Unknown signal strength is reported as {@link Integer#MAX_VALUE}, treat it as weakest.
+     */
+    private static int getSignal(CellBackendHelper.Cell cell) {
+        return cell.getSignal() == Integer.MAX_VALUE ? Integer.MIN_VALUE : cell.getSignal();
+    }
+
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    public synchronized int getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return the share of calls to {@link #get(Collection, Collection)} that returned a cached
+     * location, or {@code 0} if there were none.
+     */
+    public synchronized float getHitRatio() {
+        return hits + misses == 0 ? 0 : (float) hits / (hits + misses);
+    }
+
+    /**
+     * @return the number of cached locations dropped for being older than the max age.
+     */
+    public synchronized int getStaleEntryCount() {
+        return staleEntries;
+    }
+
+    /**
+     * MAC addresses of Wi-Fis and cells, kept apart so that the sets are typed and a MAC address
+     * is never compared to a cell.
+     */
+    static class Fingerprint {
+        final Set<Long> wiFis = new HashSet<Long>();
+        final Set<CellBackendHelper.Cell> cells = new HashSet<CellBackendHelper.Cell>();
+
+        int size() {
+            return wiFis.size() + cells.size();
+        }
+
+        boolean isEmpty() {
+            return wiFis.isEmpty() && cells.isEmpty();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Fingerprint)) return false;
+            Fingerprint that = (Fingerprint) o;
+            return wiFis.equals(that.wiFis) && cells.equals(that.cells);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * wiFis.hashCode() + cells.hashCode();
+        }
+    }
+
+    private static class Entry {
+        private final Fingerprint fingerprint;
+        private final Location location;
+        private final long time;
+
+        private Entry(Fingerprint fingerprint, Location location, long time) {
+            this.fingerprint = fingerprint;
+            this.location = location;
+            this.time = time;
+        }
+    }
+}
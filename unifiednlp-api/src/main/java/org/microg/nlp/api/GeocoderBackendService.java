@@ -21,12 +21,40 @@ import android.location.Address;
 import android.os.IBinder;
 import android.os.RemoteException;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public abstract class GeocoderBackendService extends AbstractBackendService {
 
+    /**
+     * Coordinates are compared with 6 decimal places (about 0.1 m) when coalescing requests.
+     */
+    private static final double COORDINATE_PRECISION = 1e6;
+
     private final Backend backend = new Backend();
     private boolean connected = false;
+    private final Map<String, Flight> flights = new HashMap<String, Flight>();
+    private long requests;
+    private long coalescedRequests;
+    private ReverseGeocodePrefetcher prefetcher;
+
+    private ThreadPoolExecutor lookupExecutor;
+    private int maxConcurrentLookups = 2;
+    private int maxQueuedLookups = 16;
+    private long lookupTimeout = 10 * 1000;
+    private int shedLookups;
+    private int timedOutLookups;
 
     @Override
     protected IBinder getBackend() {
@@ -58,6 +86,275 @@ public abstract class GeocoderBackendService extends AbstractBackendService {
             double lowerLeftLatitude, double lowerLeftLongitude, double upperRightLatitude,
             double upperRightLongitude, String locale);
 
+    /**
+     * Sets whether reverse geocoding results are cached and the area around or ahead of
+     * requests is resolved in advance, see {@link ReverseGeocodePrefetcher}. Lookups in advance
+     * run on the low priority thread of the prefetcher, not on the lookup threads, so they never
+     * take the place of a requested lookup. A request for the same position as a running lookup
+     * in advance waits for it, at most for the lookup timeout.
+     * <p/>
+     * Default is {@code false}.
+     */
+    public synchronized void setPrefetchEnabled(boolean prefetchEnabled) {
+        if (!prefetchEnabled) {
+            prefetcher = null;
+        } else if (prefetcher == null) {
+            prefetcher = new ReverseGeocodePrefetcher(new ReverseGeocodePrefetcher.Lookup() {
+                @Override
+                public List<Address> getFromLocation(final double latitude, final double longitude,
+                        final int maxResults, final String locale) {
+                    return coalesce(getLocationKey(latitude, longitude, maxResults, locale), new Lookup() {
+                        @Override
+                        public List<Address> run() {
+                            return GeocoderBackendService.this.getFromLocation(latitude, longitude, maxResults, locale);
+                        }
+                    }, true);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the prefetcher used if enabled using {@link #setPrefetchEnabled(boolean)}, to
+     * configure it or read its hit and waste counts, or {@code null}.
+     */
+    public synchronized ReverseGeocodePrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Sets the number of lookups that run at the same time. Lookups run on their own threads,
+     * binder threads only wait for them.
+     * <p/>
+     * Default is {@code 2}.
+     */
+    public synchronized void setMaxConcurrentLookups(int maxConcurrentLookups) {
+        if (maxConcurrentLookups <= 0)
+            throw new IllegalArgumentException("maxConcurrentLookups must be positive");
+        this.maxConcurrentLookups = maxConcurrentLookups;
+        resetLookupExecutor();
+    }
+
+    /**
+     * Sets the number of lookups that may wait for a free lookup thread. If more lookups are
+     * requested, they are answered with an empty result immediately.
+     * <p/>
+     * Default is {@code 16}.
+     */
+    public synchronized void setMaxQueuedLookups(int maxQueuedLookups) {
+        if (maxQueuedLookups <= 0)
+            throw new IllegalArgumentException("maxQueuedLookups must be positive");
+        this.maxQueuedLookups = maxQueuedLookups;
+        resetLookupExecutor();
+    }
+
+    /**
+     * Sets the time in milliseconds a lookup may take, including the time it waited for a free
+     * lookup thread. Lookups taking longer are interrupted and answered with an empty result.
+     * <p/>
+     * Default is {@code 10000}.
+     */
+    public synchronized void setLookupTimeout(long lookupTimeout) {
+        if (lookupTimeout <= 0)
+            throw new IllegalArgumentException("lookupTimeout must be positive");
+        this.lookupTimeout = lookupTimeout;
+    }
+
+    /**
+     * @return the number of lookups answered with an empty result, because too many lookups were
+     * waiting already.
+     */
+    public synchronized int getShedLookupCount() {
+        return shedLookups;
+    }
+
+    /**
+     * @return the number of lookups answered with an empty result, because they did not finish in
+     * time.
+     */
+    public synchronized int getTimedOutLookupCount() {
+        return timedOutLookups;
+    }
+
+    private synchronized ThreadPoolExecutor getLookupExecutor() {
+        if (lookupExecutor == null) {
+            lookupExecutor = new ThreadPoolExecutor(maxConcurrentLookups, maxConcurrentLookups,
+                    30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxQueuedLookups));
+            lookupExecutor.allowCoreThreadTimeOut(true);
+        }
+        return lookupExecutor;
+    }
+
+    private void resetLookupExecutor() {
+        if (lookupExecutor != null) {
+            // Running and queued lookups still finish
+            lookupExecutor.shutdown();
+            lookupExecutor = null;
+        }
+    }
+
+    /**
+     * Run the lookup on the lookup executor and wait for it, within the lookup timeout.
+     *
+     * @return the result of the lookup, or {@code null} if it was shed, did not finish in time or
+     * the waiting thread was interrupted.
+     */
+    private List<Address> runBounded(final Lookup lookup) {
+        long timeout;
+        Future<List<Address>> future;
+        synchronized (this) {
+            timeout = lookupTimeout;
+            try {
+                future = getLookupExecutor().submit(new Callable<List<Address>>() {
+                    @Override
+                    public List<Address> call() {
+                        return lookup.run();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                shedLookups++;
+                return null;
+            }
+        }
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            synchronized (this) {
+                timedOutLookups++;
+            }
+            return null;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * @return the share of requests that did not trigger their own lookup, because an identical
+     * request or lookup in advance was in flight already.
+     */
+    public float getCoalescingRatio() {
+        synchronized (flights) {
+            return requests == 0 ? 0 : (float) coalescedRequests / requests;
+        }
+    }
+
+    /**
+     * Runs the lookup, unless an identical lookup is in flight already. In that case, wait for
+     * the running lookup and share its result.
+     *
+     * @param prefetch whether the lookup is run in advance. It then runs on the calling thread
+     *                 instead of the lookup executor and is not counted as a request.
+     * @return the result, or {@code null} if the lookup failed as described for
+     * {@link #runBounded(Lookup)}.
+     */
+    private List<Address> coalesce(String key, Lookup lookup, boolean prefetch) {
+        Flight flight;
+        boolean leader = false;
+        synchronized (flights) {
+            flight = flights.get(key);
+            if (flight == null) {
+                flight = new Flight();
+                flights.put(key, flight);
+                leader = true;
+            }
+            if (!prefetch) {
+                requests++;
+                if (!leader) coalescedRequests++;
+            }
+        }
+        if (!leader) {
+            long timeout = 0;
+            if (!prefetch) {
+                // The running lookup may be one in advance, without the lookup timeout
+                synchronized (this) {
+                    timeout = lookupTimeout;
+                }
+            }
+            try {
+                return flight.await(timeout);
+            } catch (TimeoutException e) {
+                synchronized (this) {
+                    timedOutLookups++;
+                }
+                return null;
+            }
+        }
+
+        List<Address> result = null;
+        RuntimeException error = null;
+        try {
+            result = prefetch ? lookup.run() : runBounded(lookup);
+        } catch (RuntimeException e) {
+            error = e;
+        } finally {
+            synchronized (flights) {
+                flights.remove(key);
+            }
+            flight.complete(result, error);
+        }
+        if (error != null) throw error;
+        return result;
+    }
+
+    private static String getLocationKey(double latitude, double longitude, int maxResults, String locale) {
+        return "location:" + normalize(latitude) + "," + normalize(longitude) + ":" + maxResults
+                + ":" + locale;
+    }
+
+    private static long normalize(double coordinate) {
+        return Math.round(coordinate * COORDINATE_PRECISION);
+    }
+
+    private static String normalize(String locationName) {
+        return locationName == null ? null : locationName.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private interface Lookup {
+        List<Address> run();
+    }
+
+    private static class Flight {
+        private boolean done;
+        private List<Address> result;
+        private RuntimeException error;
+
+        synchronized void complete(List<Address> result, RuntimeException error) {
+            this.result = result;
+            this.error = error;
+            this.done = true;
+            notifyAll();
+        }
+
+        /**
+         * @param timeout maximum time to wait in milliseconds, or {@code 0} to wait until done.
+         */
+        synchronized List<Address> await(long timeout) throws TimeoutException {
+            boolean interrupted = false;
+            long deadline = System.currentTimeMillis() + timeout;
+            while (!done) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (timeout > 0 && remaining <= 0) break;
+                try {
+                    wait(timeout > 0 ? remaining : 0);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            if (!done) throw new TimeoutException();
+            if (error != null) throw error;
+            return result;
+        }
+    }
+
     private class Backend extends GeocoderBackend.Stub {
 
         @Override
@@ -67,19 +364,61 @@ public abstract class GeocoderBackendService extends AbstractBackendService {
         }
 
         @Override
-        public List<Address> getFromLocation(double latitude, double longitude, int maxResults,
-                String locale) throws RemoteException {
-            return GeocoderBackendService.this
-                    .getFromLocation(latitude, longitude, maxResults, locale);
+        public List<Address> getFromLocation(final double latitude, final double longitude,
+                final int maxResults, final String locale) throws RemoteException {
+            ReverseGeocodePrefetcher prefetcher = getPrefetcher();
+            if (prefetcher != null) {
+                List<Address> cached = prefetcher.get(latitude, longitude, maxResults, locale);
+                if (cached != null) return cached;
+            }
+            List<Address> addresses = coalesce(getLocationKey(latitude, longitude, maxResults, locale), new Lookup() {
+                @Override
+                public List<Address> run() {
+                    return GeocoderBackendService.this
+                            .getFromLocation(latitude, longitude, maxResults, locale);
+                }
+            }, false);
+            // Failed lookups are not cached as "no address"
+            if (addresses == null) return new ArrayList<Address>();
+            if (prefetcher != null) {
+                prefetcher.onQuery(latitude, longitude, maxResults, locale, addresses);
+            }
+            return addresses;
+        }
+
+        @Override
+        public List<Address> getFromLocationName(final String locationName, final int maxResults,
+                final double lowerLeftLatitude, final double lowerLeftLongitude,
+                final double upperRightLatitude, final double upperRightLongitude,
+                final String locale) throws RemoteException {
+            String key = "name:" + maxResults + ":" + normalize(lowerLeftLatitude) + ","
+                    + normalize(lowerLeftLongitude) + "," + normalize(upperRightLatitude) + ","
+                    + normalize(upperRightLongitude) + ":" + locale + ":" + normalize(locationName);
+            List<Address> addresses = coalesce(key, new Lookup() {
+                @Override
+                public List<Address> run() {
+                    return GeocoderBackendService.this
+                            .getFromLocationName(locationName, maxResults, lowerLeftLatitude,
+                                    lowerLeftLongitude, upperRightLatitude, upperRightLongitude,
+                                    locale);
+                }
+            }, false);
+            return addresses == null ? new ArrayList<Address>() : addresses;
+        }
+
+        @Override
+        public CompactAddressList getFromLocationCompact(double latitude, double longitude,
+                int maxResults, String locale, int fields) throws RemoteException {
+            return new CompactAddressList(getFromLocation(latitude, longitude, maxResults, locale), fields);
         }
 
         @Override
-        public List<Address> getFromLocationName(String locationName, int maxResults,
+        public CompactAddressList getFromLocationNameCompact(String locationName, int maxResults,
                 double lowerLeftLatitude, double lowerLeftLongitude, double upperRightLatitude,
-                double upperRightLongitude, String locale) throws RemoteException {
-            return GeocoderBackendService.this
-                    .getFromLocationName(locationName, maxResults, lowerLeftLatitude,
-                            lowerLeftLongitude, upperRightLatitude, upperRightLongitude, locale);
+                double upperRightLongitude, String locale, int fields) throws RemoteException {
+            return new CompactAddressList(getFromLocationName(locationName, maxResults,
+                    lowerLeftLatitude, lowerLeftLongitude, upperRightLatitude, upperRightLongitude,
+                    locale), fields);
         }
 
         @Override
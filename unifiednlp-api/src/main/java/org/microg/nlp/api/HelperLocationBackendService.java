@@ -20,9 +20,13 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.location.Location;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -33,47 +37,233 @@ public abstract class HelperLocationBackendService extends LocationBackendServic
 
     private boolean opened;
     private final Set<AbstractBackendHelper> helpers = new HashSet<AbstractBackendHelper>();
+    private final Set<AbstractBackendHelper> openedHelpers = new HashSet<AbstractBackendHelper>();
+    private boolean lazyStartup;
+    private boolean updateRequested;
+    private int generation;
+    private MotionGate motionGate;
+    private Location lastLocation;
+    private Set<CellBackendHelper.Cell> lastServingCells;
+
+    /**
+     * Sets whether helpers are opened in the background after the backend was opened, instead of
+     * while opening it.
+     * <p/>
+     * With lazy startup, opening the backend returns right away. Helpers are then opened one by
+     * one, cheapest source first (cells, Wi-Fi, Bluetooth, others), and scan right away if an
+     * update was requested meanwhile, so the first location comes from the fastest source.
+     * <p/>
+     * Default is {@code false}.
+     */
+    public synchronized void setLazyStartup(boolean lazyStartup) {
+        this.lazyStartup = lazyStartup;
+    }
+
+    /**
+     * Sets a gate to skip scans while the device is still. While the gate reports the device as
+     * still, updates report the last location again instead of scanning, except for the few cell
+     * updates let through by the gate.
+     * <p/>
+     * Default is {@code null}, scanning on every update.
+     */
+    public synchronized void setMotionGate(MotionGate motionGate) {
+        if (opened && this.motionGate != null) this.motionGate.stop();
+        this.motionGate = motionGate;
+        if (opened && motionGate != null) motionGate.start();
+    }
 
     public synchronized void addHelper(AbstractBackendHelper helper) {
         helpers.add(helper);
+        if (helper instanceof WiFiBackendHelper) {
+            ((WiFiBackendHelper) helper).setRequestedScanMode(getScanMode(getRequest()));
+        }
         if (opened) {
-            helper.onOpen();
+            if (lazyStartup) {
+                openLazily(helper);
+            } else {
+                openHelper(helper);
+            }
         }
     }
 
     public synchronized void removeHelpers() {
-        if (opened) {
-            for (AbstractBackendHelper helper : helpers) {
-                helper.onClose();
-            }
+        for (AbstractBackendHelper helper : openedHelpers) {
+            helper.onClose();
         }
+        openedHelpers.clear();
         helpers.clear();
+        generation++;
     }
 
     @Override
     protected synchronized void onOpen() {
-        for (AbstractBackendHelper helper : helpers) {
-            helper.onOpen();
+        generation++;
+        updateRequested = false;
+        if (lazyStartup) {
+            List<AbstractBackendHelper> sorted = new ArrayList<AbstractBackendHelper>(helpers);
+            Collections.sort(sorted, BY_STARTUP_COST);
+            for (AbstractBackendHelper helper : sorted) {
+                openLazily(helper);
+            }
+        } else {
+            for (AbstractBackendHelper helper : helpers) {
+                openHelper(helper);
+            }
         }
+        if (motionGate != null) motionGate.start();
         opened = true;
     }
 
     @Override
     protected synchronized void onClose() {
-        for (AbstractBackendHelper helper : helpers) {
+        generation++;
+        for (AbstractBackendHelper helper : openedHelpers) {
             helper.onClose();
         }
+        openedHelpers.clear();
+        if (motionGate != null) motionGate.stop();
+        lastLocation = null;
+        lastServingCells = null;
         opened = false;
     }
 
+    private void openHelper(AbstractBackendHelper helper) {
+        helper.onOpen();
+        openedHelpers.add(helper);
+    }
+
+    /**
+     * Open the helper on its looper. Helpers share a looper by default, so helpers opened in
+     * order are opened one after the other, without blocking each other's scan results for long.
+     */
+    private void openLazily(final AbstractBackendHelper helper) {
+        final int generation = this.generation;
+        helper.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (HelperLocationBackendService.this) {
+                    // Closed or helpers removed before we got here
+                    if (generation != HelperLocationBackendService.this.generation
+                            || !helpers.contains(helper) || openedHelpers.contains(helper)) return;
+                    openHelper(helper);
+                    if (updateRequested && !(isCellOnly(getRequest()) && !(helper instanceof CellBackendHelper))) {
+                        helper.onUpdate();
+                    }
+                }
+            }
+        });
+    }
+
+    private static int getStartupCost(AbstractBackendHelper helper) {
+        if (helper instanceof CellBackendHelper) return 0;
+        if (helper instanceof WiFiBackendHelper) return 1;
+        if (helper instanceof BluetoothBackendHelper) return 2;
+        return 3;
+    }
+
+    private static final Comparator<AbstractBackendHelper> BY_STARTUP_COST = new Comparator<AbstractBackendHelper>() {
+        @Override
+        public int compare(AbstractBackendHelper lhs, AbstractBackendHelper rhs) {
+            return getStartupCost(lhs) - getStartupCost(rhs);
+        }
+    };
+
+    /**
+     * Requests for this accuracy or coarser are served by cells alone, if there is a cell helper.
+     */
+    private static final float CELL_ONLY_ACCURACY = 1000;
+
     @Override
     protected synchronized Location update() {
-        for (AbstractBackendHelper helper : helpers) {
+        updateRequested = true;
+        if (motionGate != null && hasServingCellChanged()) motionGate.onServingCellChanged();
+        if (motionGate != null && lastLocation != null && motionGate.isStill()) {
+            if (motionGate.tryWake()) {
+                for (AbstractBackendHelper helper : openedHelpers) {
+                    if (helper instanceof CellBackendHelper) helper.onUpdate();
+                }
+            }
+            return getStillLocation();
+        }
+        boolean cellOnly = isCellOnly(getRequest());
+        for (AbstractBackendHelper helper : openedHelpers) {
+            if (cellOnly && !(helper instanceof CellBackendHelper)) continue;
             helper.onUpdate();
         }
         return null;
     }
 
+    /**
+     * Cell helpers keep track of the serving cell without scanning, so a change is noticed even
+     * while scans are suppressed.
+     */
+    private boolean hasServingCellChanged() {
+        Set<CellBackendHelper.Cell> servingCells = new HashSet<CellBackendHelper.Cell>();
+        for (AbstractBackendHelper helper : openedHelpers) {
+            if (helper instanceof CellBackendHelper) {
+                servingCells.addAll(((CellBackendHelper) helper).getServingCells());
+            }
+        }
+        if (servingCells.isEmpty()) return false;
+        boolean changed = lastServingCells != null && !lastServingCells.equals(servingCells);
+        lastServingCells = servingCells;
+        return changed;
+    }
+
+    private Location getStillLocation() {
+        Location location = new Location(lastLocation);
+        location.setTime(System.currentTimeMillis());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+        }
+        return location;
+    }
+
+    @Override
+    public void report(Location location) {
+        synchronized (this) {
+            if (location != null) lastLocation = location;
+        }
+        super.report(location);
+    }
+
+    /**
+     * Adjusts the helpers to the request: Wi-Fi is scanned passively for low power requests,
+     * only if needed for medium power requests and actively for high power requests. Without a
+     * power requirement, the scan mode set on the helper applies. Requests with coarse accuracy
+     * only update cells.
+     */
+    @Override
+    protected synchronized void onRequestChanged(BackendRequest request) {
+        WiFiBackendHelper.ScanMode scanMode = getScanMode(request);
+        for (AbstractBackendHelper helper : helpers) {
+            if (helper instanceof WiFiBackendHelper) {
+                ((WiFiBackendHelper) helper).setRequestedScanMode(scanMode);
+            }
+        }
+    }
+
+    private static WiFiBackendHelper.ScanMode getScanMode(BackendRequest request) {
+        switch (request.getPower()) {
+            case BackendRequest.POWER_LOW:
+                return WiFiBackendHelper.ScanMode.PASSIVE;
+            case BackendRequest.POWER_MEDIUM:
+                return WiFiBackendHelper.ScanMode.HYBRID;
+            case BackendRequest.POWER_HIGH:
+                return WiFiBackendHelper.ScanMode.ACTIVE;
+            default:
+                return null;
+        }
+    }
+
+    private boolean isCellOnly(BackendRequest request) {
+        if (request.getAccuracy() < CELL_ONLY_ACCURACY) return false;
+        for (AbstractBackendHelper helper : helpers) {
+            if (helper instanceof CellBackendHelper) return true;
+        }
+        return false;
+    }
+
     @Override
     protected Intent getInitIntent() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
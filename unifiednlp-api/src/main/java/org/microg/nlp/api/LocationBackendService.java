@@ -18,6 +18,7 @@ package org.microg.nlp.api;
 
 import android.content.Intent;
 import android.location.Location;
+import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
 
@@ -26,6 +27,7 @@ public abstract class LocationBackendService extends AbstractBackendService {
     private final Backend backend = new Backend();
     private LocationCallback callback;
     private Location waiting;
+    private volatile BackendRequest request = BackendRequest.NO_REQUIREMENT;
 
     /**
      * Called, whenever an app requires a location update. This can be a single or a repeated request.
@@ -41,6 +43,25 @@ public abstract class LocationBackendService extends AbstractBackendService {
         return null;
     }
 
+    /**
+     * Called, whenever the requirements of the apps requesting locations changed. Use this to
+     * adjust how your backend gathers data, e.g. prefer cheaper sources if only low accuracy or
+     * low power usage is requested.
+     * <p/>
+     * Clients that do not send requests never call this.
+     *
+     * @param request the new requirements, also available from {@link #getRequest()}.
+     */
+    protected void onRequestChanged(BackendRequest request) {
+    }
+
+    /**
+     * @return the current requirements of the apps requesting locations.
+     */
+    public BackendRequest getRequest() {
+        return request;
+    }
+
     /**
      * Directly report a {@link android.location.Location} to the requesting apps. Use this if your updates are based
      * on environment changes (eg. cell id change).
@@ -103,6 +124,13 @@ public abstract class LocationBackendService extends AbstractBackendService {
             disconnect();
         }
 
+        @Override
+        public void setRequest(Bundle bundle) throws RemoteException {
+            BackendRequest request = BackendRequest.fromBundle(bundle);
+            LocationBackendService.this.request = request;
+            onRequestChanged(request);
+        }
+
         @Override
         public Intent getInitIntent() throws RemoteException {
             return LocationBackendService.this.getInitIntent();
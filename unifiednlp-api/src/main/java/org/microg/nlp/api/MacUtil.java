@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+/**
+ * Conversion between the string form of mac addresses used by the helpers and a packed
+ * 48-bit representation stored in a {@code long}.
+ */
+public final class MacUtil {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private MacUtil() {
+    }
+
+    /**
+     * @param mac address in any form accepted by {@link WiFiBackendHelper#wellFormedMac(String)}
+     * @return the mac address packed into the lower 48 bits of a long
+     */
+    public static long pack(String mac) {
+        String wellFormed = WiFiBackendHelper.wellFormedMac(mac);
+        long packed = 0;
+        for (int i = 0; i < 6; ++i) {
+            packed = (packed << 8) | (Character.digit(wellFormed.charAt(i * 3), 16) << 4)
+                    | Character.digit(wellFormed.charAt(i * 3 + 1), 16);
+        }
+        return packed;
+    }
+
+    /**
+     * @return the mac address in the same form as returned by {@link WiFiBackendHelper#wellFormedMac(String)}
+     */
+    public static String unpack(long packed) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; ++i) {
+            int b = (int) (packed >>> ((5 - i) * 8)) & 0xff;
+            chars[i * 3] = HEX_DIGITS[b >>> 4];
+            chars[i * 3 + 1] = HEX_DIGITS[b & 0xf];
+            if (i < 5) chars[i * 3 + 2] = ':';
+        }
+        return new String(chars);
+    }
+}
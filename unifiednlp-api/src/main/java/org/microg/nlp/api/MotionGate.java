@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.os.SystemClock;
+
+/**
+ * Decides whether scans are needed, based on whether the device is moving.
+ * <p/>
+ * While the {@link Source} reports the device as still, {@link HelperLocationBackendService}
+ * does not scan and reports the last location again instead. A few cell updates per still period
+ * are still let through (see {@link #setWakeBudget(int)}). If the serving cell changes, the
+ * motion source missed the device moving: the gate then lets scans through for the cell change
+ * timeout (see {@link #onServingCellChanged()}).
+ * <p/>
+ * Apart from serving cell changes, the gate only depends on its source, so it can be used on a
+ * JVM with a {@link ManualSource}. Use {@link SensorMotionSource} on a device.
+ */
+public class MotionGate {
+    private final Source source;
+    private final Listener listener = new Listener() {
+        @Override
+        public void onMotionChanged(boolean moving) {
+            setMoving(moving);
+        }
+    };
+
+    private int wakeBudget = 2;
+    private long cellChangeTimeout = 2 * 60 * 1000;
+    private long movingUntil;
+    private boolean started;
+    private boolean moving = true;
+    private int wakesLeft;
+
+    private int suppressedScans;
+    private int wakes;
+
+    public MotionGate(Source source) {
+        if (source == null)
+            throw new IllegalArgumentException("source must not be null");
+        this.source = source;
+    }
+
+    /**
+     * Sets the number of cell updates let through while the device is still, counted from the
+     * moment it stopped moving.
+     * <p/>
+     * Default is {@code 2}.
+     */
+    public synchronized void setWakeBudget(int wakeBudget) {
+        if (wakeBudget < 0)
+            throw new IllegalArgumentException("wakeBudget must not be negative");
+        this.wakeBudget = wakeBudget;
+    }
+
+    /**
+     * Sets the time in milliseconds the device is considered moving after a change of the serving
+     * cell.
+     * <p/>
+     * Default is {@code 120000}.
+     */
+    public synchronized void setCellChangeTimeout(long cellChangeTimeout) {
+        if (cellChangeTimeout <= 0)
+            throw new IllegalArgumentException("cellChangeTimeout must be positive");
+        this.cellChangeTimeout = cellChangeTimeout;
+    }
+
+    /**
+     * Called by {@link HelperLocationBackendService} if the serving cell changed, to consider the
+     * device moving for the cell change timeout, even if the source reports it still.
+     */
+    public synchronized void onServingCellChanged() {
+        if (!started) return;
+        movingUntil = SystemClock.elapsedRealtime() + cellChangeTimeout;
+    }
+
+    public void start() {
+        synchronized (this) {
+            if (started) return;
+            started = true;
+            moving = true;
+            movingUntil = 0;
+        }
+        source.start(listener);
+    }
+
+    public void stop() {
+        synchronized (this) {
+            if (!started) return;
+            started = false;
+            moving = true;
+        }
+        source.stop();
+    }
+
+    private synchronized void setMoving(boolean moving) {
+        if (!started || this.moving == moving) return;
+        this.moving = moving;
+        if (!moving) wakesLeft = wakeBudget;
+    }
+
+    /**
+     * @return whether scans are suppressed, because the device is still. A gate that is not
+     * started never suppresses scans.
+     */
+    public synchronized boolean isStill() {
+        if (!started || moving) return false;
+        if (movingUntil != 0) {
+            if (SystemClock.elapsedRealtime() < movingUntil) return false;
+            // Still again after the cell change, with a new wake budget
+            movingUntil = 0;
+            wakesLeft = wakeBudget;
+        }
+        return true;
+    }
+
+    /**
+     * Called for each suppressed scan, to take one cell update out of the wake budget.
+     *
+     * @return whether a cell update should be done nevertheless.
+     */
+    public synchronized boolean tryWake() {
+        if (!isStill()) return true;
+        suppressedScans++;
+        if (wakesLeft <= 0) return false;
+        wakesLeft--;
+        wakes++;
+        return true;
+    }
+
+    /**
+     * @return the number of updates that were suppressed because the device was still.
+     */
+    public synchronized int getSuppressedScanCount() {
+        return suppressedScans;
+    }
+
+    /**
+     * @return the number of cell updates let through while the device was still.
+     */
+    public synchronized int getWakeCount() {
+        return wakes;
+    }
+
+    /**
+     * Tells the gate whether the device moves.
+     */
+    public interface Source {
+        /**
+         * Start reporting changes of motion to the listener. The device is assumed to be moving
+         * until reported otherwise.
+         */
+        void start(Listener listener);
+
+        void stop();
+    }
+
+    public interface Listener {
+        void onMotionChanged(boolean moving);
+    }
+
+    /**
+     * A source that reports what it is told via {@link #setMoving(boolean)}, e.g. for use in
+     * tests or by backends that know about the motion of the device by other means.
+     */
+    public static class ManualSource implements Source {
+        private Listener listener;
+        private boolean moving = true;
+
+        @Override
+        public synchronized void start(Listener listener) {
+            this.listener = listener;
+            if (!moving) listener.onMotionChanged(false);
+        }
+
+        @Override
+        public synchronized void stop() {
+            listener = null;
+        }
+
+        public synchronized void setMoving(boolean moving) {
+            this.moving = moving;
+            if (listener != null) listener.onMotionChanged(moving);
+        }
+    }
+}
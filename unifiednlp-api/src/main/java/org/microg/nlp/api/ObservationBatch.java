@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A batch of observed Wi-Fis, cells and Bluetooth devices that can be sent to another process.
+ * <p/>
+ * Observations are stored as packed primitive arrays (mac addresses and cell ids as longs, Wi-Fi
+ * and Bluetooth signal levels as bytes), so that even large scans only take a few compact arrays
+ * when parceled.
+ * {@link #getWiFis()}, {@link #getCells()} and {@link #getBluetooths()} are read-only views that
+ * create the observation objects on access.
+ * <p/>
+ * Wi-Fi channels are not stored, but derived from the frequency. Wi-Fi and Bluetooth signal levels
+ * are limited to the range of a byte, cell signal levels (down to -156 dBm for NR) to the range of
+ * a short. Unknown signal levels ({@link Integer#MAX_VALUE}) are retained.
+ */
+public class ObservationBatch implements Parcelable {
+    private static final byte UNKNOWN_SIGNAL = Byte.MAX_VALUE;
+    private static final short UNKNOWN_CELL_SIGNAL = Short.MAX_VALUE;
+    private static final int MNC_FACTOR = 100000;
+
+    private final long[] wiFiMacs;
+    private final byte[] wiFiRssis;
+    private final int[] wiFiFrequencies;
+    private final long[] wiFiTimes;
+
+    private final byte[] cellTypes;
+    private final int[] cellMccMncs;
+    private final int[] cellLacs;
+    private final long[] cellIds;
+    private final int[] cellPscs;
+    private final short[] cellSignals;
+    private final int[] cellSubscriptions;
+
+    private final long[] bluetoothMacs;
+    private final byte[] bluetoothRssis;
+    private final String[] bluetoothNames;
+
+    /**
+     * Any of the collections may be {@code null} if there are no such observations.
+     */
+    public ObservationBatch(Collection<WiFiBackendHelper.WiFi> wiFis,
+            Collection<CellBackendHelper.Cell> cells,
+            Collection<BluetoothBackendHelper.Bluetooth> bluetooths) {
+        if (wiFis == null) wiFis = Collections.emptyList();
+        if (cells == null) cells = Collections.emptyList();
+        if (bluetooths == null) bluetooths = Collections.emptyList();
+
+        wiFiMacs = new long[wiFis.size()];
+        wiFiRssis = new byte[wiFis.size()];
+        wiFiFrequencies = new int[wiFis.size()];
+        wiFiTimes = new long[wiFis.size()];
+        int i = 0;
+        for (WiFiBackendHelper.WiFi wiFi : wiFis) {
+            wiFiMacs[i] = wiFi.getMac();
+            wiFiRssis[i] = packSignal(wiFi.getRssi());
+            wiFiFrequencies[i] = wiFi.getFrequency();
+            wiFiTimes[i] = wiFi.getTime();
+            i++;
+        }
+
+        cellTypes = new byte[cells.size()];
+        cellMccMncs = new int[cells.size()];
+        cellLacs = new int[cells.size()];
+        cellIds = new long[cells.size()];
+        cellPscs = new int[cells.size()];
+        cellSignals = new short[cells.size()];
+        cellSubscriptions = new int[cells.size()];
+        i = 0;
+        for (CellBackendHelper.Cell cell : cells) {
+            cellTypes[i] = (byte) cell.getType().ordinal();
+            cellMccMncs[i] = cell.getMcc() * MNC_FACTOR + cell.getMnc();
+            cellLacs[i] = cell.getLac();
+            cellIds[i] = cell.getCid();
+            cellPscs[i] = cell.getPsc();
+            cellSignals[i] = packCellSignal(cell.getSignal());
+            cellSubscriptions[i] = cell.getSubscriptionId();
+            i++;
+        }
+
+        bluetoothMacs = new long[bluetooths.size()];
+        bluetoothRssis = new byte[bluetooths.size()];
+        bluetoothNames = new String[bluetooths.size()];
+        i = 0;
+        for (BluetoothBackendHelper.Bluetooth bluetooth : bluetooths) {
+            bluetoothMacs[i] = MacUtil.pack(bluetooth.getBssid());
+            bluetoothRssis[i] = packSignal(bluetooth.getRssi());
+            bluetoothNames[i] = bluetooth.getName();
+            i++;
+        }
+    }
+
+    private ObservationBatch(Parcel in) {
+        wiFiMacs = in.createLongArray();
+        wiFiRssis = in.createByteArray();
+        wiFiFrequencies = in.createIntArray();
+        wiFiTimes = in.createLongArray();
+        cellTypes = in.createByteArray();
+        cellMccMncs = in.createIntArray();
+        cellLacs = in.createIntArray();
+        cellIds = in.createLongArray();
+        cellPscs = in.createIntArray();
+        cellSignals = new short[in.readInt()];
+        for (int i = 0; i < cellSignals.length; i++) {
+            cellSignals[i] = (short) in.readInt();
+        }
+        cellSubscriptions = in.createIntArray();
+        bluetoothMacs = in.createLongArray();
+        bluetoothRssis = in.createByteArray();
+        bluetoothNames = in.createStringArray();
+    }
+
+    /**
+     * @return a read-only view of the Wi-Fis in this batch.
+     */
+    public List<WiFiBackendHelper.WiFi> getWiFis() {
+        return new AbstractList<WiFiBackendHelper.WiFi>() {
+            @Override
+            public WiFiBackendHelper.WiFi get(int index) {
+                int frequency = wiFiFrequencies[index];
+                return new WiFiBackendHelper.WiFi(MacUtil.unpack(wiFiMacs[index]),
+                        unpackSignal(wiFiRssis[index]),
+                        WiFiBackendHelper.frequencyToChannel(frequency), frequency, wiFiTimes[index]);
+            }
+
+            @Override
+            public int size() {
+                return wiFiMacs.length;
+            }
+        };
+    }
+
+    /**
+     * @return a read-only view of the cells in this batch.
+     */
+    public List<CellBackendHelper.Cell> getCells() {
+        return new AbstractList<CellBackendHelper.Cell>() {
+            @Override
+            public CellBackendHelper.Cell get(int index) {
+                return new CellBackendHelper.Cell(CellBackendHelper.Cell.CellType.values()[cellTypes[index]],
+                        cellMccMncs[index] / MNC_FACTOR, cellMccMncs[index] % MNC_FACTOR,
+                        cellLacs[index], cellIds[index], cellPscs[index],
+                        unpackCellSignal(cellSignals[index]), cellSubscriptions[index]);
+            }
+
+            @Override
+            public int size() {
+                return cellIds.length;
+            }
+        };
+    }
+
+    /**
+     * @return a read-only view of the Bluetooth devices in this batch.
+     */
+    public List<BluetoothBackendHelper.Bluetooth> getBluetooths() {
+        return new AbstractList<BluetoothBackendHelper.Bluetooth>() {
+            @Override
+            public BluetoothBackendHelper.Bluetooth get(int index) {
+                return new BluetoothBackendHelper.Bluetooth(MacUtil.unpack(bluetoothMacs[index]),
+                        bluetoothNames[index], unpackSignal(bluetoothRssis[index]));
+            }
+
+            @Override
+            public int size() {
+                return bluetoothMacs.length;
+            }
+        };
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLongArray(wiFiMacs);
+        dest.writeByteArray(wiFiRssis);
+        dest.writeIntArray(wiFiFrequencies);
+        dest.writeLongArray(wiFiTimes);
+        dest.writeByteArray(cellTypes);
+        dest.writeIntArray(cellMccMncs);
+        dest.writeIntArray(cellLacs);
+        dest.writeLongArray(cellIds);
+        dest.writeIntArray(cellPscs);
+        // Parcel has no short arrays
+        dest.writeInt(cellSignals.length);
+        for (short signal : cellSignals) {
+            dest.writeInt(signal);
+        }
+        dest.writeIntArray(cellSubscriptions);
+        dest.writeLongArray(bluetoothMacs);
+        dest.writeByteArray(bluetoothRssis);
+        dest.writeStringArray(bluetoothNames);
+    }
+
+    private static byte packSignal(int signal) {
+        if (signal == Integer.MAX_VALUE) return UNKNOWN_SIGNAL;
+        return (byte) Math.max(Byte.MIN_VALUE, Math.min(UNKNOWN_SIGNAL - 1, signal));
+    }
+
+    private static int unpackSignal(byte signal) {
+        return signal == UNKNOWN_SIGNAL ? Integer.MAX_VALUE : signal;
+    }
+
+    private static short packCellSignal(int signal) {
+        if (signal == Integer.MAX_VALUE) return UNKNOWN_CELL_SIGNAL;
+        return (short) Math.max(Short.MIN_VALUE, Math.min(UNKNOWN_CELL_SIGNAL - 1, signal));
+    }
+
+    private static int unpackCellSignal(short signal) {
+        return signal == UNKNOWN_CELL_SIGNAL ? Integer.MAX_VALUE : signal;
+    }
+
+    public static final Creator<ObservationBatch> CREATOR = new Creator<ObservationBatch>() {
+        @Override
+        public ObservationBatch createFromParcel(Parcel source) {
+            return new ObservationBatch(source);
+        }
+
+        @Override
+        public ObservationBatch[] newArray(int size) {
+            return new ObservationBatch[size];
+        }
+    };
+}
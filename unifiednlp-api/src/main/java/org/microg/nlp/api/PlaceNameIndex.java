@@ -0,0 +1,608 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.location.Address;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.regex.Pattern;
+
+/**
+ * An offline index of place names, to answer
+ * {@link GeocoderBackendService#getFromLocationName(String, int, double, double, double, double, String)}
+ * for prefixes of place names, as sent by callers while the user is typing.
+ * <p/>
+ * The index is written once using {@link Builder} and memory-mapped using {@link #open(File)}, so
+ * it is neither parsed nor kept on the heap. Names are normalized (case, diacritics and whitespace
+ * are ignored) and stored in sorted order, so all names starting with a prefix form a consecutive
+ * range that is found by binary search. A tree holding the most important place of each subrange
+ * is used to visit the places of that range by importance, so that only as many places are read
+ * as needed to fill the result, even for short prefixes matching most of the index.
+ * <p/>
+ * Places are also partitioned into grid cells (see {@link Builder#setCellSize(double)}), each
+ * holding its places in the same sorted order, with a tree of its own. Searches within bounds
+ * covering up to {@link #MAX_SEARCHED_CELLS} cells only visit the prefix ranges of the cells
+ * within the bounds, so places elsewhere are never read.
+ * <p/>
+ * Instances are immutable and may be queried from several threads.
+ */
+public class PlaceNameIndex {
+    private static final int MAGIC = 0x4e4c5049;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 24;
+    private static final int ENTRY_SIZE = 32;
+    private static final int CELL_SIZE = 8;
+    private static final double E6 = 1e6;
+    private static final int LATITUDE_RANGE_E6 = 180000000;
+    private static final int LONGITUDE_RANGE_E6 = 360000000;
+
+    /**
+     * Searches within bounds covering more grid cells than this walk the places of all cells,
+     * skipping those out of bounds.
+     */
+    public static final int MAX_SEARCHED_CELLS = 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int leaves;
+    private final int cellSize;
+    private final int cells;
+    private final int rows;
+    private final int columns;
+    private final int treeOffset;
+    private final int cellsOffset;
+    private final int spatialTreeOffset;
+    private final int stringsOffset;
+
+    /**
+     * @throws IOException if the buffer does not contain a place name index.
+     */
+    public PlaceNameIndex(ByteBuffer buffer) throws IOException {
+        if (buffer == null)
+            throw new IllegalArgumentException("buffer must not be null");
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a place name index");
+        if (buffer.getInt(4) != VERSION)
+            throw new IOException("Unsupported index version: " + buffer.getInt(4));
+        this.buffer = buffer;
+        this.count = buffer.getInt(8);
+        this.leaves = buffer.getInt(12);
+        this.cellSize = buffer.getInt(16);
+        this.cells = buffer.getInt(20);
+        if (cellSize <= 0)
+            throw new IOException("Invalid cell size: " + cellSize);
+        this.rows = getRows(cellSize);
+        this.columns = getColumns(cellSize);
+        this.treeOffset = HEADER_SIZE + count * ENTRY_SIZE;
+        this.cellsOffset = treeOffset + 2 * leaves * 4;
+        this.spatialTreeOffset = cellsOffset + cells * CELL_SIZE;
+        this.stringsOffset = spatialTreeOffset + 2 * leaves * 4;
+        if (stringsOffset > buffer.capacity())
+            throw new IOException("Truncated place name index");
+    }
+
+    /**
+     * Memory-map the index stored in the given file.
+     */
+    public static PlaceNameIndex open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            return new PlaceNameIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * @return the number of places in this index.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Find the most important places whose normalized name starts with the normalized prefix.
+     * <p/>
+     * Bounds are given the same way as to {@link GeocoderBackendService}: if all of them are
+     * {@code 0}, places are not filtered by location. Bounds crossing the antimeridian are
+     * supported.
+     *
+     * @return up to maxResults places, most important first.
+     */
+    public List<Place> search(String prefix, int maxResults, double lowerLeftLatitude,
+            double lowerLeftLongitude, double upperRightLatitude, double upperRightLongitude) {
+        List<Place> places = new ArrayList<Place>();
+        if (prefix == null || maxResults <= 0) return places;
+        byte[] key = normalize(prefix).getBytes(UTF_8);
+        if (key.length == 0) return places;
+        int from = search(key, false);
+        int to = search(key, true);
+        if (from >= to) return places;
+
+        boolean bounded = lowerLeftLatitude != 0 || lowerLeftLongitude != 0
+                || upperRightLatitude != 0 || upperRightLongitude != 0;
+        if (!bounded) {
+            walk(treeOffset, Collections.singletonList(new int[]{from, to}), maxResults, null, places);
+            return places;
+        }
+        int[] bounds = new int[]{(int) Math.round(lowerLeftLatitude * E6), (int) Math.round(lowerLeftLongitude * E6),
+                (int) Math.round(upperRightLatitude * E6), (int) Math.round(upperRightLongitude * E6)};
+        if (bounds[0] > bounds[2]) return places;
+
+        int fromRow = getRow(bounds[0], cellSize, rows);
+        int toRow = getRow(bounds[2], cellSize, rows);
+        int fromColumn = getColumn(bounds[1], cellSize, columns);
+        int toColumn = getColumn(bounds[3], cellSize, columns);
+        // Bounds crossing the antimeridian cover the columns up to the last and from the first
+        int coveredColumns = bounds[1] <= bounds[3] ? toColumn - fromColumn + 1 : columns - fromColumn + toColumn + 1;
+        if ((long) (toRow - fromRow + 1) * coveredColumns > MAX_SEARCHED_CELLS) {
+            walk(treeOffset, Collections.singletonList(new int[]{from, to}), maxResults, bounds, places);
+            return places;
+        }
+        List<int[]> ranges = new ArrayList<int[]>();
+        for (int row = fromRow; row <= toRow; row++) {
+            if (bounds[1] <= bounds[3]) {
+                addCellRanges(key, row, fromColumn, toColumn, ranges);
+            } else {
+                addCellRanges(key, row, fromColumn, columns - 1, ranges);
+                addCellRanges(key, row, 0, toColumn, ranges);
+            }
+        }
+        walk(spatialTreeOffset, ranges, maxResults, bounds, places);
+        return places;
+    }
+
+    /**
+     * Add the ranges of places starting with the prefix in the non-empty cells of the given row
+     * and columns, as positions in the spatial order.
+     */
+    private void addCellRanges(byte[] prefix, int row, int fromColumn, int toColumn, List<int[]> ranges) {
+        int cell = findCell(row * columns + fromColumn);
+        for (; cell < cells && getCellId(cell) <= row * columns + toColumn; cell++) {
+            int start = getCellStart(cell);
+            int end = cell + 1 < cells ? getCellStart(cell + 1) : count;
+            int from = search(prefix, false, spatialTreeOffset, start, end);
+            int to = search(prefix, true, spatialTreeOffset, from, end);
+            if (from < to) ranges.add(new int[]{from, to});
+        }
+    }
+
+    /**
+     * @return the first non-empty cell whose id is not lower than the given one.
+     */
+    private int findCell(int cellId) {
+        int low = 0;
+        int high = cells;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getCellId(mid) < cellId) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Visit the places in the given ranges of leaves of a tree by importance, and add those
+     * within bounds to the result until it is full.
+     *
+     * @param bounds minimum latitude, minimum longitude, maximum latitude and maximum longitude,
+     *               or {@code null} to not filter by location.
+     */
+    private void walk(int tree, List<int[]> ranges, int maxResults, int[] bounds, List<Place> places) {
+        PriorityQueue<Integer> queue = new PriorityQueue<Integer>(16, new ByImportance(tree));
+        for (int[] range : ranges) {
+            for (int l = range[0] + leaves, r = range[1] + leaves; l < r; l >>= 1, r >>= 1) {
+                if ((l & 1) == 1) queue.add(l++);
+                if ((r & 1) == 1) queue.add(--r);
+            }
+        }
+        while (!queue.isEmpty() && places.size() < maxResults) {
+            int node = queue.poll();
+            if (node >= leaves) {
+                int entry = getTreeEntry(tree, node);
+                if (bounds == null || isInBounds(entry, bounds)) {
+                    places.add(readPlace(entry));
+                }
+            } else {
+                if (getTreeEntry(tree, 2 * node) >= 0) queue.add(2 * node);
+                if (getTreeEntry(tree, 2 * node + 1) >= 0) queue.add(2 * node + 1);
+            }
+        }
+    }
+
+    private class ByImportance implements Comparator<Integer> {
+        private final int tree;
+
+        private ByImportance(int tree) {
+            this.tree = tree;
+        }
+
+        @Override
+        public int compare(Integer lhs, Integer rhs) {
+            return Float.compare(getImportance(getTreeEntry(tree, rhs)), getImportance(getTreeEntry(tree, lhs)));
+        }
+    }
+
+    /**
+     * @return the first entry whose key starts with or sorts after the prefix, or with
+     * {@code after} set, the first entry whose key sorts after all keys starting with the prefix.
+     */
+    private int search(byte[] prefix, boolean after) {
+        return search(prefix, after, treeOffset, 0, count);
+    }
+
+    /**
+     * Same as {@link #search(byte[], boolean)}, for the leaves of the given tree between from
+     * (inclusive) and to (exclusive), which must be sorted.
+     */
+    private int search(byte[] prefix, boolean after, int tree, int from, int to) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int compare = comparePrefix(getTreeEntry(tree, leaves + mid), prefix);
+            if (compare < 0 || (after && compare == 0)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int comparePrefix(int entry, byte[] prefix) {
+        int offset = stringsOffset + buffer.getInt(HEADER_SIZE + entry * ENTRY_SIZE);
+        int length = buffer.getShort(offset) & 0xffff;
+        offset += 2;
+        for (int i = 0; i < length && i < prefix.length; i++) {
+            int a = buffer.get(offset + i) & 0xff;
+            int b = prefix[i] & 0xff;
+            if (a != b) return a - b;
+        }
+        return length >= prefix.length ? 0 : -1;
+    }
+
+    private boolean isInBounds(int entry, int[] bounds) {
+        int position = HEADER_SIZE + entry * ENTRY_SIZE;
+        int latitude = buffer.getInt(position + 8);
+        int longitude = buffer.getInt(position + 12);
+        if (latitude < bounds[0] || latitude > bounds[2]) return false;
+        if (bounds[1] <= bounds[3]) return longitude >= bounds[1] && longitude <= bounds[3];
+        return longitude >= bounds[1] || longitude <= bounds[3];
+    }
+
+    private int getTreeEntry(int tree, int node) {
+        return buffer.getInt(tree + node * 4);
+    }
+
+    private int getCellId(int cell) {
+        return buffer.getInt(cellsOffset + cell * CELL_SIZE);
+    }
+
+    private int getCellStart(int cell) {
+        return buffer.getInt(cellsOffset + cell * CELL_SIZE + 4);
+    }
+
+    private static int getRows(int cellSize) {
+        // The last row only holds places at the north pole
+        return LATITUDE_RANGE_E6 / cellSize + 1;
+    }
+
+    private static int getColumns(int cellSize) {
+        return (LONGITUDE_RANGE_E6 + cellSize - 1) / cellSize;
+    }
+
+    private static int getRow(int latitude, int cellSize, int rows) {
+        long row = ((long) latitude + LATITUDE_RANGE_E6 / 2) / cellSize;
+        return (int) Math.max(0, Math.min(rows - 1, row));
+    }
+
+    private static int getColumn(int longitude, int cellSize, int columns) {
+        // Places at longitude 180 are in the last column, not in the first
+        long column = ((long) longitude + LONGITUDE_RANGE_E6 / 2) / cellSize;
+        return (int) Math.max(0, Math.min(columns - 1, column));
+    }
+
+    private float getImportance(int entry) {
+        return buffer.getFloat(HEADER_SIZE + entry * ENTRY_SIZE + 16);
+    }
+
+    private Place readPlace(int entry) {
+        int position = HEADER_SIZE + entry * ENTRY_SIZE;
+        return new Place(readString(buffer.getInt(position + 4)), buffer.getInt(position + 8) / E6,
+                buffer.getInt(position + 12) / E6, buffer.getFloat(position + 16),
+                buffer.getLong(position + 20));
+    }
+
+    private String readString(int offset) {
+        int position = stringsOffset + offset;
+        byte[] bytes = new byte[buffer.getShort(position) & 0xffff];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(position + 2 + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Normalize a place name or query: lower case, without diacritics and with single spaces
+     * only.
+     */
+    public static String normalize(String name) {
+        String normalized = Normalizer.normalize(name, Normalizer.Form.NFD);
+        normalized = DIACRITICS.matcher(normalized).replaceAll("");
+        normalized = WHITESPACE.matcher(normalized).replaceAll(" ");
+        return normalized.trim().toLowerCase(Locale.ROOT);
+    }
+
+    public static class Place {
+        private final String name;
+        private final double latitude;
+        private final double longitude;
+        private final float importance;
+        private final long id;
+
+        public Place(String name, double latitude, double longitude, float importance, long id) {
+            if (name == null)
+                throw new IllegalArgumentException("name must not be null");
+            this.name = name;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.importance = importance;
+            this.id = id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getLatitude() {
+            return latitude;
+        }
+
+        public double getLongitude() {
+            return longitude;
+        }
+
+        public float getImportance() {
+            return importance;
+        }
+
+        /**
+         * @return the id given when building the index, to look up further details of the place.
+         */
+        public long getId() {
+            return id;
+        }
+
+        public Address toAddress(Locale locale) {
+            Address address = new Address(locale);
+            address.setFeatureName(name);
+            address.setLatitude(latitude);
+            address.setLongitude(longitude);
+            return address;
+        }
+
+        @Override
+        public String toString() {
+            return "Place{" +
+                    "name='" + name + '\'' +
+                    ", latitude=" + latitude +
+                    ", longitude=" + longitude +
+                    ", importance=" + importance +
+                    ", id=" + id +
+                    '}';
+        }
+    }
+
+    /**
+     * Collects places and writes them as index, usually while preparing the dataset of a
+     * backend.
+     */
+    public static class Builder {
+        private final List<Place> places = new ArrayList<Place>();
+        private double cellSize = 1;
+
+        /**
+         * Sets the edge length of the grid cells places are partitioned into, in degrees.
+         * Smaller cells make searches within small bounds faster, but searches within larger
+         * bounds slower, see {@link #MAX_SEARCHED_CELLS}.
+         * <p/>
+         * Default is {@code 1}.
+         */
+        public Builder setCellSize(double cellSize) {
+            if (!(cellSize >= 0.01 && cellSize <= 360))
+                throw new IllegalArgumentException("cellSize must be between 0.01 and 360");
+            this.cellSize = cellSize;
+            return this;
+        }
+
+        public Builder add(Place place) {
+            if (place == null)
+                throw new IllegalArgumentException("place must not be null");
+            places.add(place);
+            return this;
+        }
+
+        public Builder add(String name, double latitude, double longitude, float importance, long id) {
+            return add(new Place(name, latitude, longitude, importance, id));
+        }
+
+        public void write(OutputStream out) throws IOException {
+            final byte[][] keys = new byte[places.size()][];
+            Integer[] order = new Integer[places.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = normalize(places.get(i).getName()).getBytes(UTF_8);
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    int compare = compareBytes(keys[lhs], keys[rhs]);
+                    if (compare != 0) return compare;
+                    return Float.compare(places.get(rhs).getImportance(), places.get(lhs).getImportance());
+                }
+            });
+
+            int leaves = 1;
+            while (leaves < order.length) leaves <<= 1;
+            int[] tree = new int[2 * leaves];
+            Arrays.fill(tree, -1);
+            for (int i = 0; i < order.length; i++) {
+                tree[leaves + i] = i;
+            }
+
+            // Spatial order: by cell, within a cell in the sorted order of the names
+            int cellSizeE6 = (int) Math.round(cellSize * E6);
+            int rows = getRows(cellSizeE6);
+            int columns = getColumns(cellSizeE6);
+            final int[] cellIds = new int[order.length];
+            Integer[] spatialOrder = new Integer[order.length];
+            for (int i = 0; i < order.length; i++) {
+                Place place = places.get(order[i]);
+                cellIds[i] = getRow((int) Math.round(place.getLatitude() * E6), cellSizeE6, rows) * columns
+                        + getColumn((int) Math.round(place.getLongitude() * E6), cellSizeE6, columns);
+                spatialOrder[i] = i;
+            }
+            Arrays.sort(spatialOrder, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    if (cellIds[lhs] != cellIds[rhs]) return cellIds[lhs] < cellIds[rhs] ? -1 : 1;
+                    return lhs - rhs;
+                }
+            });
+            List<int[]> cells = new ArrayList<int[]>();
+            int[] spatialTree = new int[2 * leaves];
+            Arrays.fill(spatialTree, -1);
+            for (int i = 0; i < spatialOrder.length; i++) {
+                int cellId = cellIds[spatialOrder[i]];
+                if (cells.isEmpty() || cells.get(cells.size() - 1)[0] != cellId) {
+                    cells.add(new int[]{cellId, i});
+                }
+                spatialTree[leaves + i] = spatialOrder[i];
+            }
+            buildTree(tree, leaves, order);
+            buildTree(spatialTree, leaves, order);
+
+            List<byte[]> strings = new ArrayList<byte[]>();
+            Map<String, Integer> stringOffsets = new HashMap<String, Integer>();
+            int[] offset = new int[]{0};
+            int[] keyOffsets = new int[order.length];
+            int[] nameOffsets = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                keyOffsets[i] = addString(strings, stringOffsets, offset, keys[order[i]]);
+                nameOffsets[i] = addString(strings, stringOffsets, offset, places.get(order[i]).getName().getBytes(UTF_8));
+            }
+
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(order.length);
+            data.writeInt(leaves);
+            data.writeInt(cellSizeE6);
+            data.writeInt(cells.size());
+            for (int i = 0; i < order.length; i++) {
+                Place place = places.get(order[i]);
+                data.writeInt(keyOffsets[i]);
+                data.writeInt(nameOffsets[i]);
+                data.writeInt((int) Math.round(place.getLatitude() * E6));
+                data.writeInt((int) Math.round(place.getLongitude() * E6));
+                data.writeFloat(place.getImportance());
+                data.writeLong(place.getId());
+                data.writeInt(0);
+            }
+            for (int node : tree) {
+                data.writeInt(node);
+            }
+            for (int[] cell : cells) {
+                data.writeInt(cell[0]);
+                data.writeInt(cell[1]);
+            }
+            for (int node : spatialTree) {
+                data.writeInt(node);
+            }
+            for (byte[] string : strings) {
+                data.writeShort(string.length);
+                data.write(string);
+            }
+            data.flush();
+        }
+
+        /**
+         * Fill the inner nodes of the tree with the most important entry of their leaves.
+         */
+        private void buildTree(int[] tree, int leaves, Integer[] order) {
+            for (int node = leaves - 1; node > 0; node--) {
+                int left = tree[2 * node];
+                int right = tree[2 * node + 1];
+                if (right < 0 || (left >= 0 && places.get(order[left]).getImportance() >= places.get(order[right]).getImportance())) {
+                    tree[node] = left;
+                } else {
+                    tree[node] = right;
+                }
+            }
+        }
+
+        private static int addString(List<byte[]> strings, Map<String, Integer> stringOffsets,
+                int[] offset, byte[] string) {
+            if (string.length > 0xffff)
+                throw new IllegalArgumentException("Place name too long");
+            String key = new String(string, UTF_8);
+            Integer existing = stringOffsets.get(key);
+            if (existing != null) return existing;
+            int stringOffset = offset[0];
+            strings.add(string);
+            stringOffsets.put(key, stringOffset);
+            offset[0] += 2 + string.length;
+            return stringOffset;
+        }
+
+        private static int compareBytes(byte[] lhs, byte[] rhs) {
+            for (int i = 0; i < lhs.length && i < rhs.length; i++) {
+                int a = lhs[i] & 0xff;
+                int b = rhs[i] & 0xff;
+                if (a != b) return a - b;
+            }
+            return lhs.length - rhs.length;
+        }
+    }
+}
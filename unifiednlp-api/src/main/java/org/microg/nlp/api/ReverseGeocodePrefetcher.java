@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.location.Address;
+import android.location.Location;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers reverse geocoding requests from memory, by resolving the grid tiles around or ahead of
+ * the previous requests in advance.
+ * <p/>
+ * The prefetcher watches the requests passed to {@link #onQuery(double, double, int, String, List)}.
+ * If the requests move, the tiles on the way are resolved, otherwise the surrounding tiles. Tiles
+ * are resolved for their center on a single low priority thread, at most {@link #MAX_QUEUED} are
+ * waiting, the oldest waiting ones are discarded first. Requests for a resolved tile are answered
+ * with the result for that tile, if they are close enough to the point the tile was resolved for
+ * and the result is not too old (see {@link #setMaxDistance(float)} and {@link #setMaxAge(long)}).
+ * <p/>
+ * Use {@link GeocoderBackendService#setPrefetchEnabled(boolean)} to use a prefetcher in a
+ * geocoder backend.
+ */
+public class ReverseGeocodePrefetcher {
+    private static final String TAG = "GeocodePrefetcher";
+
+    /**
+     * Requests more than this apart are not used to estimate movement.
+     */
+    private static final long MAX_MOTION_AGE = 60 * 1000;
+
+    /**
+     * Maximum number of tiles waiting to be resolved.
+     */
+    public static final int MAX_QUEUED = 16;
+
+    private final Lookup lookup;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() <= cacheSize) return false;
+            if (eldest.getValue().prefetched && !eldest.getValue().used) wastedPrefetches++;
+            return true;
+        }
+    };
+    private final Set<String> pending = new HashSet<String>();
+
+    private double tileSize = 0.001;
+    private int budget = 4;
+    private int cacheSize = 256;
+    private long lookahead = 60 * 1000;
+    private long maxAge = 60 * 60 * 1000;
+    private float maxDistance = 100;
+
+    private double lastX = Double.NaN;
+    private double lastY = Double.NaN;
+    private long lastTime;
+
+    private int prefetches;
+    private int prefetchHits;
+    private int wastedPrefetches;
+    private int discardedPrefetches;
+
+    public ReverseGeocodePrefetcher(Lookup lookup) {
+        if (lookup == null)
+            throw new IllegalArgumentException("lookup must not be null");
+        this.lookup = lookup;
+        this.executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                        runnable.run();
+                    }
+                }, TAG);
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) {
+                    discard((Prefetch) runnable);
+                    return;
+                }
+                // Tiles scheduled for older requests are the least likely to be requested
+                Runnable oldest = executor.getQueue().poll();
+                if (oldest != null) discard((Prefetch) oldest);
+                executor.execute(runnable);
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the edge length of a grid tile, in degrees.
+     * <p/>
+     * Default is {@code 0.001} (about 100 m).
+     */
+    public synchronized void setTileSize(double tileSize) {
+        if (tileSize <= 0)
+            throw new IllegalArgumentException("tileSize must be positive");
+        this.tileSize = tileSize;
+        cache.clear();
+        lastX = lastY = Double.NaN;
+    }
+
+    /**
+     * Sets the maximum number of tiles resolved in advance after each request.
+     * <p/>
+     * Default is {@code 4}.
+     */
+    public synchronized void setBudget(int budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Sets the number of tiles kept in memory.
+     * <p/>
+     * Default is {@code 256}.
+     */
+    public synchronized void setCacheSize(int cacheSize) {
+        if (cacheSize <= 0)
+            throw new IllegalArgumentException("cacheSize must be positive");
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Sets how far ahead, in milliseconds at the current speed, tiles are resolved while moving.
+     * <p/>
+     * Default is {@code 60000}.
+     */
+    public synchronized void setLookahead(long lookahead) {
+        this.lookahead = lookahead;
+    }
+
+    /**
+     * Sets the maximum age of cached results, in milliseconds. Older results are resolved again.
+     * <p/>
+     * Default is {@code 3600000} (one hour).
+     */
+    public synchronized void setMaxAge(long maxAge) {
+        if (maxAge <= 0)
+            throw new IllegalArgumentException("maxAge must be positive");
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Sets the maximum distance, in meters, between a request and the point its tile was resolved
+     * for, to answer the request from memory.
+     * <p/>
+     * Default is {@code 100}.
+     */
+    public synchronized void setMaxDistance(float maxDistance) {
+        if (maxDistance <= 0)
+            throw new IllegalArgumentException("maxDistance must be positive");
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * @return the result cached for the tile of the given position, or {@code null}.
+     */
+    public synchronized List<Address> get(double latitude, double longitude, int maxResults, String locale) {
+        String key = getKey(getTile(longitude), getTile(latitude), maxResults, locale);
+        Entry entry = getFresh(key);
+        if (entry == null) return null;
+        float[] distance = new float[1];
+        Location.distanceBetween(latitude, longitude, entry.latitude, entry.longitude, distance);
+        if (distance[0] > maxDistance) return null;
+        if (entry.prefetched && !entry.used) prefetchHits++;
+        entry.used = true;
+        return entry.addresses;
+    }
+
+    /**
+     * Call this with every resolved request, to cache its result and resolve the tiles around or
+     * ahead of it.
+     */
+    public void onQuery(double latitude, double longitude, int maxResults, String locale,
+            List<Address> addresses) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            double x = longitude / tileSize;
+            double y = latitude / tileSize;
+            if (addresses != null) {
+                Entry entry = new Entry(addresses, latitude, longitude, false, now);
+                entry.used = true;
+                cache.put(getKey((long) Math.floor(x), (long) Math.floor(y), maxResults, locale), entry);
+            }
+            double dx = 0, dy = 0;
+            if (!Double.isNaN(lastX) && now > lastTime && now - lastTime <= MAX_MOTION_AGE) {
+                // Tiles per millisecond
+                dx = (x - lastX) / (now - lastTime);
+                dy = (y - lastY) / (now - lastTime);
+            }
+            lastX = x;
+            lastY = y;
+            lastTime = now;
+
+            long tileX = (long) Math.floor(x);
+            long tileY = (long) Math.floor(y);
+            double distance = Math.sqrt(dx * dx + dy * dy) * lookahead;
+            int scheduled = 0;
+            if (distance >= 1) {
+                // Moving: tiles along the predicted way, evenly spread within lookahead
+                int steps = (int) Math.ceil(distance);
+                int step = Math.max(1, steps / Math.max(1, budget));
+                for (int i = 1; i <= steps && scheduled < budget; i += step) {
+                    double t = (double) i / steps * lookahead;
+                    if (schedule((long) Math.floor(x + dx * t), (long) Math.floor(y + dy * t), maxResults, locale))
+                        scheduled++;
+                }
+            } else {
+                // Not moving: surrounding tiles
+                for (int i = 0; i < NEIGHBORS.length && scheduled < budget; i++) {
+                    if (schedule(tileX + NEIGHBORS[i][0], tileY + NEIGHBORS[i][1], maxResults, locale))
+                        scheduled++;
+                }
+            }
+        }
+    }
+
+    private static final int[][] NEIGHBORS = {
+            {1, 0}, {-1, 0}, {0, 1}, {0, -1}, {1, 1}, {-1, -1}, {1, -1}, {-1, 1}
+    };
+
+    private boolean schedule(long tileX, long tileY, int maxResults, String locale) {
+        String key = getKey(tileX, tileY, maxResults, locale);
+        if (getFresh(key) != null || !pending.add(key)) return false;
+        prefetches++;
+        executor.execute(new Prefetch(key, (tileY + 0.5) * tileSize, (tileX + 0.5) * tileSize,
+                maxResults, locale, tileSize));
+        return true;
+    }
+
+    /**
+     * @return the cached entry, or {@code null} if there is none or it is older than maxAge.
+     */
+    private Entry getFresh(String key) {
+        Entry entry = cache.get(key);
+        if (entry != null && SystemClock.elapsedRealtime() - entry.time > maxAge) {
+            cache.remove(key);
+            if (entry.prefetched && !entry.used) wastedPrefetches++;
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void discard(Prefetch prefetch) {
+        pending.remove(prefetch.key);
+        discardedPrefetches++;
+    }
+
+    private long getTile(double coordinate) {
+        return (long) Math.floor(coordinate / tileSize);
+    }
+
+    private static String getKey(long tileX, long tileY, int maxResults, String locale) {
+        return tileX + ":" + tileY + ":" + maxResults + ":" + locale;
+    }
+
+    /**
+     * @return the number of tiles scheduled for resolving in advance.
+     */
+    public synchronized int getPrefetchCount() {
+        return prefetches;
+    }
+
+    /**
+     * @return the number of tiles resolved in advance that were requested later.
+     */
+    public synchronized int getPrefetchHitCount() {
+        return prefetchHits;
+    }
+
+    /**
+     * @return the number of tiles resolved in advance that were dropped from memory without
+     * being requested.
+     */
+    public synchronized int getWastedPrefetchCount() {
+        return wastedPrefetches;
+    }
+
+    /**
+     * @return the number of tiles scheduled for resolving in advance that were discarded before
+     * being resolved, because too many were waiting.
+     */
+    public synchronized int getDiscardedPrefetchCount() {
+        return discardedPrefetches;
+    }
+
+    public interface Lookup {
+        List<Address> getFromLocation(double latitude, double longitude, int maxResults, String locale);
+    }
+
+    private class Prefetch implements Runnable {
+        private final String key;
+        private final double latitude;
+        private final double longitude;
+        private final int maxResults;
+        private final String locale;
+        private final double tileSize;
+
+        private Prefetch(String key, double latitude, double longitude, int maxResults, String locale,
+                double tileSize) {
+            this.key = key;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.maxResults = maxResults;
+            this.locale = locale;
+            this.tileSize = tileSize;
+        }
+
+        @Override
+        public void run() {
+            List<Address> addresses = null;
+            try {
+                addresses = lookup.getFromLocation(latitude, longitude, maxResults, locale);
+            } catch (Exception e) {
+                Log.w(TAG, "Prefetch failed", e);
+            }
+            synchronized (ReverseGeocodePrefetcher.this) {
+                pending.remove(key);
+                if (addresses != null && tileSize == ReverseGeocodePrefetcher.this.tileSize) {
+                    cache.put(key, new Entry(addresses, latitude, longitude, true, SystemClock.elapsedRealtime()));
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        private final List<Address> addresses;
+        private final double latitude;
+        private final double longitude;
+        private final boolean prefetched;
+        private final long time;
+        private boolean used;
+
+        private Entry(List<Address> addresses, double latitude, double longitude, boolean prefetched, long time) {
+            this.addresses = addresses;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.prefetched = prefetched;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+
+/**
+ * Records the scans seen by {@link CellBackendHelper}, {@link WiFiBackendHelper} and
+ * {@link BluetoothBackendHelper} into a compact binary stream, so they can later be fed back into
+ * the helpers using {@link ScanReplayer}.
+ * <p/>
+ * Attach a recorder using {@link AbstractBackendHelper#setScanRecorder(ScanRecorder)}. A single
+ * recorder may be shared by several helpers. If writing fails, the recorder logs a warning and
+ * silently stops recording, so it never breaks the backend it is attached to.
+ * <p/>
+ * Records hold the fields the helpers use, as parsed from the input of the system: the cells of a
+ * subscription, the Wi-Fis of a scan (without {@code _nomap} networks), and the devices found by
+ * Bluetooth discovery and LE scans. They don't depend on the API level or the parcel format of
+ * the recording device, so they replay on any device and on a JVM.
+ * <p/>
+ * The stream starts with a header (magic, format version, wall clock time of the first record).
+ * Each record consists of its kind, the milliseconds passed since the previous record and the
+ * kind-specific payload. Mac addresses are written as 6 bytes, signal levels as short.
+ */
+public class ScanRecorder implements Closeable {
+    private static final String TAG = "ScanRecorder";
+
+    static final int MAGIC = 0x4e4c5052;
+    static final int VERSION = 1;
+
+    static final int RECORD_CELLS = 1;
+    static final int RECORD_WIFIS = 2;
+    static final int RECORD_BLUETOOTH_DISCOVERY_STARTED = 3;
+    static final int RECORD_BLUETOOTH_FOUND = 4;
+    static final int RECORD_BLUETOOTH_DISCOVERY_FINISHED = 5;
+    static final int RECORD_BLUETOOTH_LE_BATCH = 6;
+
+    private final DataOutputStream out;
+    private long lastRecord;
+    private boolean failed;
+
+    public ScanRecorder(OutputStream out) throws IOException {
+        if (out == null)
+            throw new IllegalArgumentException("out must not be null");
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.lastRecord = System.currentTimeMillis();
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        this.out.writeLong(lastRecord);
+    }
+
+    synchronized void recordCells(int subscriptionId, Collection<CellBackendHelper.Cell> cells) {
+        try {
+            startRecord(RECORD_CELLS);
+            out.writeInt(subscriptionId);
+            out.writeInt(cells.size());
+            for (CellBackendHelper.Cell cell : cells) {
+                out.writeByte(cell.getType().ordinal());
+                out.writeShort(cell.getMcc());
+                out.writeShort(cell.getMnc());
+                out.writeInt(cell.getLac());
+                out.writeLong(cell.getCid());
+                out.writeInt(cell.getPsc());
+                out.writeShort(packSignal(cell.getSignal()));
+                out.writeBoolean(cell.isRegistered());
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Wi-Fi times are relative to boot, they are written as age at the time of the record, so
+     * they can be moved to the time of the replay.
+     */
+    synchronized void recordWiFis(boolean resultsUpdated, Collection<WiFiBackendHelper.WiFi> wiFis) {
+        try {
+            startRecord(RECORD_WIFIS);
+            out.writeBoolean(resultsUpdated);
+            out.writeInt(wiFis.size());
+            long now = SystemClock.elapsedRealtime();
+            for (WiFiBackendHelper.WiFi wiFi : wiFis) {
+                writeMac(wiFi.getMac());
+                out.writeShort(packSignal(wiFi.getRssi()));
+                out.writeShort(wiFi.getFrequency());
+                out.writeInt((int) Math.min(Integer.MAX_VALUE, Math.max(0, now - wiFi.getTime())));
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    synchronized void recordBluetoothDiscoveryStarted() {
+        try {
+            startRecord(RECORD_BLUETOOTH_DISCOVERY_STARTED);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    synchronized void recordBluetoothFound(BluetoothBackendHelper.Bluetooth bluetooth) {
+        try {
+            startRecord(RECORD_BLUETOOTH_FOUND);
+            writeBluetooth(bluetooth);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    synchronized void recordBluetoothDiscoveryFinished() {
+        try {
+            startRecord(RECORD_BLUETOOTH_DISCOVERY_FINISHED);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    synchronized void recordBluetoothLeBatch(Collection<BluetoothBackendHelper.Bluetooth> bluetooths) {
+        try {
+            startRecord(RECORD_BLUETOOTH_LE_BATCH);
+            out.writeInt(bluetooths.size());
+            for (BluetoothBackendHelper.Bluetooth bluetooth : bluetooths) {
+                writeBluetooth(bluetooth);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Write all buffered records to the underlying stream.
+     */
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        failed = true;
+        out.close();
+    }
+
+    private void startRecord(int kind) throws IOException {
+        if (failed) throw new IOException("Recorder is closed");
+        long now = System.currentTimeMillis();
+        out.writeByte(kind);
+        out.writeInt((int) Math.max(0, now - lastRecord));
+        lastRecord = now;
+    }
+
+    private void writeString(String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private void writeMac(long mac) throws IOException {
+        out.writeShort((int) (mac >>> 32));
+        out.writeInt((int) mac);
+    }
+
+    private void writeBluetooth(BluetoothBackendHelper.Bluetooth bluetooth) throws IOException {
+        writeMac(MacUtil.pack(bluetooth.getBssid()));
+        out.writeShort(packSignal(bluetooth.getRssi()));
+        writeString(bluetooth.getName());
+    }
+
+    private void fail(IOException e) {
+        if (!failed) {
+            Log.w(TAG, "Failed to record scan, recording stopped", e);
+            failed = true;
+        }
+    }
+
+    /**
+     * Signal levels are limited to short, {@link Integer#MAX_VALUE} (unknown) is kept as
+     * {@link Short#MAX_VALUE}.
+     */
+    static short packSignal(int signal) {
+        if (signal >= Short.MAX_VALUE) return Short.MAX_VALUE;
+        if (signal <= Short.MIN_VALUE) return Short.MIN_VALUE;
+        return (short) signal;
+    }
+
+    static int unpackSignal(short signal) {
+        return signal == Short.MAX_VALUE ? Integer.MAX_VALUE : signal;
+    }
+}
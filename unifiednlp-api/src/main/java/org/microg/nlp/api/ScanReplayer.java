@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.os.SystemClock;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.microg.nlp.api.ScanRecorder.unpackSignal;
+
+/**
+ * Feeds a recording made by {@link ScanRecorder} into the helpers, in place of the system
+ * services they usually get their scan input from.
+ * <p/>
+ * Setting a helper puts it into replay mode: it registers no receivers or listeners with the
+ * system and {@link AbstractBackendHelper#onUpdate()} does not request scans. Recorded cells,
+ * Wi-Fis and Bluetooth devices go through the same merging, filtering and state machine as
+ * freshly parsed scans, so helpers behave like on the recording device: scans are only delivered
+ * to the listener while an update is pending (see {@link #setAutoUpdate(boolean)}). The helpers
+ * still need a {@link android.content.Context}, but no working telephony, Wi-Fi or Bluetooth
+ * service.
+ * <p/>
+ * Records are delivered to the helpers on the thread calling {@link #replay()}, either in real
+ * time, accelerated or as fast as possible (see {@link #setSpeed(float)}). Records for helpers
+ * that were not set are skipped. Recordings don't depend on the API level, so a recording of a
+ * device can be replayed on any other device or on a JVM.
+ */
+public class ScanReplayer {
+    private final DataInputStream in;
+    private final long startTime;
+    private float speed = 1;
+    private boolean autoUpdate;
+    private CellBackendHelper cellHelper;
+    private WiFiBackendHelper wiFiHelper;
+    private BluetoothBackendHelper bluetoothHelper;
+
+    /**
+     * @throws IOException if the stream does not start with a valid recording header.
+     */
+    public ScanReplayer(InputStream in) throws IOException {
+        if (in == null)
+            throw new IllegalArgumentException("in must not be null");
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        if (this.in.readInt() != ScanRecorder.MAGIC)
+            throw new IOException("Not a scan recording");
+        int version = this.in.readUnsignedByte();
+        if (version != ScanRecorder.VERSION)
+            throw new IOException("Unsupported recording version: " + version);
+        this.startTime = this.in.readLong();
+    }
+
+    /**
+     * @return wall clock time when the recording was started.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Sets the replay speed relative to the recording. {@code 1} replays in real time, {@code 10}
+     * ten times faster. {@code 0} replays all records without any delay.
+     * <p/>
+     * Default is {@code 1}.
+     */
+    public void setSpeed(float speed) {
+        if (speed < 0)
+            throw new IllegalArgumentException("speed must not be negative");
+        this.speed = speed;
+    }
+
+    /**
+     * Sets whether {@link AbstractBackendHelper#onUpdate()} is called on the receiving helper
+     * before each record, as if the backend requested updates continuously.
+     * <p/>
+     * Default is {@code false}, updates are left to the backend or subscriptions.
+     */
+    public void setAutoUpdate(boolean autoUpdate) {
+        this.autoUpdate = autoUpdate;
+    }
+
+    /**
+     * Replay cell records into the given helper. Call this before opening the helper.
+     *
+     * @throws IllegalStateException if the helper is opened.
+     */
+    public void setCellBackendHelper(CellBackendHelper cellHelper) {
+        if (cellHelper != null) cellHelper.setReplaying(true);
+        this.cellHelper = cellHelper;
+    }
+
+    /**
+     * Replay Wi-Fi records into the given helper. Call this before opening the helper.
+     *
+     * @throws IllegalStateException if the helper is opened.
+     */
+    public void setWiFiBackendHelper(WiFiBackendHelper wiFiHelper) {
+        if (wiFiHelper != null) wiFiHelper.setReplaying(true);
+        this.wiFiHelper = wiFiHelper;
+    }
+
+    /**
+     * Replay Bluetooth records into the given helper. Call this before opening the helper.
+     *
+     * @throws IllegalStateException if the helper is opened.
+     */
+    public void setBluetoothBackendHelper(BluetoothBackendHelper bluetoothHelper) {
+        if (bluetoothHelper != null) bluetoothHelper.setReplaying(true);
+        this.bluetoothHelper = bluetoothHelper;
+    }
+
+    /**
+     * Replay the recording until its end.
+     *
+     * @return the number of records read.
+     * @throws IOException if the recording is corrupt.
+     */
+    public int replay() throws IOException, InterruptedException {
+        int records = 0;
+        int kind;
+        while ((kind = in.read()) != -1) {
+            int delay = in.readInt();
+            switch (kind) {
+                case ScanRecorder.RECORD_CELLS:
+                    int subscriptionId = in.readInt();
+                    List<CellBackendHelper.Cell> cells = readCells(subscriptionId);
+                    sleep(delay);
+                    if (update(cellHelper)) cellHelper.onCellsReplayed(subscriptionId, cells);
+                    break;
+                case ScanRecorder.RECORD_WIFIS:
+                    boolean resultsUpdated = in.readBoolean();
+                    int count = readCount();
+                    sleep(delay);
+                    // Ages are relative to the record, read them once it is due
+                    List<WiFiBackendHelper.WiFi> wiFis = readWiFis(count);
+                    if (update(wiFiHelper)) wiFiHelper.onWiFisParsed(resultsUpdated, wiFis);
+                    break;
+                case ScanRecorder.RECORD_BLUETOOTH_DISCOVERY_STARTED:
+                    sleep(delay);
+                    if (update(bluetoothHelper)) bluetoothHelper.onDiscoveryStarted();
+                    break;
+                case ScanRecorder.RECORD_BLUETOOTH_FOUND:
+                    BluetoothBackendHelper.Bluetooth bluetooth = readBluetooth();
+                    sleep(delay);
+                    if (bluetoothHelper != null) bluetoothHelper.onDeviceFound(bluetooth);
+                    break;
+                case ScanRecorder.RECORD_BLUETOOTH_DISCOVERY_FINISHED:
+                    sleep(delay);
+                    if (bluetoothHelper != null) bluetoothHelper.onDiscoveryFinished();
+                    break;
+                case ScanRecorder.RECORD_BLUETOOTH_LE_BATCH:
+                    List<BluetoothBackendHelper.Bluetooth> bluetooths = readBluetooths();
+                    sleep(delay);
+                    if (update(bluetoothHelper)) bluetoothHelper.onLeScanParsed(bluetooths);
+                    break;
+                default:
+                    throw new IOException("Unknown record kind: " + kind);
+            }
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * @return whether the helper is set.
+     */
+    private boolean update(AbstractBackendHelper helper) {
+        if (helper == null) return false;
+        if (autoUpdate) helper.onUpdate();
+        return true;
+    }
+
+    private void sleep(int delay) throws InterruptedException {
+        if (speed > 0 && delay > 0) {
+            Thread.sleep((long) (delay / speed));
+        }
+    }
+
+    private int readCount() throws IOException {
+        int count = in.readInt();
+        if (count < 0)
+            throw new IOException("Corrupt record, negative count: " + count);
+        return count;
+    }
+
+    private List<CellBackendHelper.Cell> readCells(int subscriptionId) throws IOException {
+        int count = readCount();
+        CellBackendHelper.Cell.CellType[] types = CellBackendHelper.Cell.CellType.values();
+        List<CellBackendHelper.Cell> cells = new ArrayList<CellBackendHelper.Cell>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            int type = in.readUnsignedByte();
+            int mcc = in.readShort();
+            int mnc = in.readShort();
+            int lac = in.readInt();
+            long cid = in.readLong();
+            int psc = in.readInt();
+            int signal = unpackSignal(in.readShort());
+            boolean registered = in.readBoolean();
+            if (type >= types.length)
+                throw new IOException("Corrupt cell record, unknown type: " + type);
+            try {
+                cells.add(new CellBackendHelper.Cell(types[type], mcc, mnc, lac, cid, psc, signal,
+                        subscriptionId, registered));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupt cell record", e);
+            }
+        }
+        return cells;
+    }
+
+    private List<WiFiBackendHelper.WiFi> readWiFis(int count) throws IOException {
+        List<WiFiBackendHelper.WiFi> wiFis = new ArrayList<WiFiBackendHelper.WiFi>(Math.min(count, 1024));
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < count; i++) {
+            String bssid = readMac();
+            int rssi = unpackSignal(in.readShort());
+            int frequency = in.readShort();
+            int age = in.readInt();
+            wiFis.add(new WiFiBackendHelper.WiFi(bssid, rssi, WiFiBackendHelper.frequencyToChannel(frequency),
+                    frequency, now - age));
+        }
+        return wiFis;
+    }
+
+    private List<BluetoothBackendHelper.Bluetooth> readBluetooths() throws IOException {
+        int count = readCount();
+        List<BluetoothBackendHelper.Bluetooth> bluetooths =
+                new ArrayList<BluetoothBackendHelper.Bluetooth>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            bluetooths.add(readBluetooth());
+        }
+        return bluetooths;
+    }
+
+    private BluetoothBackendHelper.Bluetooth readBluetooth() throws IOException {
+        String address = readMac();
+        int rssi = unpackSignal(in.readShort());
+        String name = in.readBoolean() ? in.readUTF() : null;
+        return new BluetoothBackendHelper.Bluetooth(address, name, rssi);
+    }
+
+    private String readMac() throws IOException {
+        long packed = ((long) in.readUnsignedShort() << 32) | (in.readInt() & 0xffffffffL);
+        return MacUtil.unpack(packed);
+    }
+}
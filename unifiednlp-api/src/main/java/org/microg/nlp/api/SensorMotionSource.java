@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.Manifest;
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Motion source for {@link MotionGate} based on the significant motion sensor and the step
+ * detector. Either of them reports motion: significant motion also detects travelling in a vehicle,
+ * steps detect walking faster.
+ * <p/>
+ * The device is reported as still once no step or significant motion was detected for the still
+ * timeout, and as moving again with the next one. On devices with neither sensor, the device is
+ * always considered to be moving.
+ * <p/>
+ * On Android 10+, the step detector requires {@link Manifest.permission#ACTIVITY_RECOGNITION}
+ * (see {@link #getRequiredPermissions()}). Backends that want to use it have to declare and
+ * request it, without it only significant motion is used.
+ */
+public class SensorMotionSource implements MotionGate.Source {
+    private static final String TAG = "SensorMotionSource";
+
+    private final Context context;
+    private final Handler handler = new Handler(AbstractBackendHelper.getSharedLooper());
+    private long stillTimeout = 2 * 60 * 1000;
+
+    private MotionGate.Listener listener;
+    private boolean moving;
+    private SensorEventListener stepListener;
+    // TriggerEventListener, which does not exist before Android 4.3
+    private Object motionListener;
+    private Sensor motionSensor;
+
+    private final Runnable stillRunnable = new Runnable() {
+        @Override
+        public void run() {
+            setMoving(false);
+        }
+    };
+
+    public SensorMotionSource(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Sets the time in milliseconds without motion after which the device is considered still.
+     * <p/>
+     * Default is {@code 120000}.
+     */
+    public synchronized void setStillTimeout(long stillTimeout) {
+        if (stillTimeout <= 0)
+            throw new IllegalArgumentException("stillTimeout must be positive");
+        this.stillTimeout = stillTimeout;
+    }
+
+    /**
+     * @return whether this device has a sensor to detect motion.
+     */
+    public boolean isAvailable() {
+        SensorManager sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        if (sensorManager == null) return false;
+        return getSignificantMotionSensor(sensorManager) != null || getStepDetector(sensorManager) != null;
+    }
+
+    /**
+     * @return the permissions needed to use the step detector in addition to significant motion.
+     */
+    public String[] getRequiredPermissions() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return new String[]{Manifest.permission.ACTIVITY_RECOGNITION};
+        }
+        return new String[0];
+    }
+
+    @Override
+    public synchronized void start(MotionGate.Listener listener) {
+        this.listener = listener;
+        this.moving = true;
+        SensorManager sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        if (sensorManager == null) return;
+        boolean started = false;
+        if (getSignificantMotionSensor(sensorManager) != null) {
+            started = startSignificantMotion(sensorManager);
+        }
+        if (getStepDetector(sensorManager) != null && hasStepPermission()) {
+            started |= startStepDetector(sensorManager);
+        }
+        if (!started) {
+            Log.d(TAG, "No motion sensor, assuming the device is moving");
+            return;
+        }
+        handler.postDelayed(stillRunnable, stillTimeout);
+    }
+
+    @Override
+    public synchronized void stop() {
+        handler.removeCallbacks(stillRunnable);
+        SensorManager sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        if (sensorManager != null) {
+            if (stepListener != null) {
+                sensorManager.unregisterListener(stepListener);
+            }
+            if (motionListener != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                stopSignificantMotion(sensorManager);
+            }
+        }
+        stepListener = null;
+        motionListener = null;
+        motionSensor = null;
+        listener = null;
+    }
+
+    private static Sensor getSignificantMotionSensor(SensorManager sensorManager) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) return null;
+        return sensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
+    }
+
+    private static Sensor getStepDetector(SensorManager sensorManager) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return null;
+        return sensorManager.getDefaultSensor(Sensor.TYPE_STEP_DETECTOR);
+    }
+
+    private boolean hasStepPermission() {
+        for (String permission : getRequiredPermissions()) {
+            if (context.checkPermission(permission, Process.myPid(), Process.myUid())
+                    != PackageManager.PERMISSION_GRANTED) return false;
+        }
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private boolean startStepDetector(SensorManager sensorManager) {
+        SensorEventListener stepListener = new SensorEventListener() {
+            @Override
+            public void onSensorChanged(SensorEvent event) {
+                onMotion();
+            }
+
+            @Override
+            public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            }
+        };
+        if (!sensorManager.registerListener(stepListener, getStepDetector(sensorManager),
+                SensorManager.SENSOR_DELAY_NORMAL, handler)) return false;
+        this.stepListener = stepListener;
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private boolean startSignificantMotion(final SensorManager sensorManager) {
+        final Sensor sensor = getSignificantMotionSensor(sensorManager);
+        TriggerEventListener motionListener = new TriggerEventListener() {
+            @Override
+            public void onTrigger(TriggerEvent event) {
+                synchronized (SensorMotionSource.this) {
+                    // Trigger sensors disarm after triggering
+                    if (SensorMotionSource.this.motionListener != this) return;
+                    sensorManager.requestTriggerSensor(this, sensor);
+                }
+                onMotion();
+            }
+        };
+        if (!sensorManager.requestTriggerSensor(motionListener, sensor)) return false;
+        this.motionListener = motionListener;
+        this.motionSensor = sensor;
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void stopSignificantMotion(SensorManager sensorManager) {
+        sensorManager.cancelTriggerSensor((TriggerEventListener) motionListener, motionSensor);
+    }
+
+    private void onMotion() {
+        synchronized (this) {
+            if (listener == null) return;
+            handler.removeCallbacks(stillRunnable);
+            handler.postDelayed(stillRunnable, stillTimeout);
+        }
+        setMoving(true);
+    }
+
+    private void setMoving(boolean moving) {
+        MotionGate.Listener listener;
+        synchronized (this) {
+            if (this.listener == null || this.moving == moving) return;
+            this.moving = moving;
+            listener = this.listener;
+        }
+        listener.onMotionChanged(moving);
+    }
+}
@@ -16,23 +16,24 @@
 
 package org.microg.nlp.api;
 
+import android.content.ComponentName;
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
 import android.util.Log;
 
 public class VersionUtil {
 
+    /**
+     * Metadata is cached, see {@link BackendMetadataRegistry}.
+     */
     public static String getPackageApiVersion(Context context, String packageName) {
-        PackageManager pm = context.getPackageManager();
-        ApplicationInfo applicationInfo;
-        try {
-            applicationInfo = pm.getApplicationInfo(packageName, PackageManager.GET_META_DATA);
-        } catch (PackageManager.NameNotFoundException e) {
-            return null;
-        }
-        return applicationInfo.metaData == null ? null
-                : applicationInfo.metaData.getString(Constants.METADATA_API_VERSION);
+        return BackendMetadataRegistry.getInstance(context).getApiVersion(packageName);
+    }
+
+    /**
+     * @return the cost and capabilities declared by the given backend service.
+     */
+    public static BackendDescriptor getBackendDescriptor(Context context, ComponentName service) {
+        return BackendMetadataRegistry.getInstance(context).getDescriptor(service);
     }
 
     public static String getServiceApiVersion(Context context) {
@@ -24,11 +24,18 @@ import android.content.IntentFilter;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
 import android.os.Build;
+import android.os.SystemClock;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import static android.Manifest.permission.ACCESS_COARSE_LOCATION;
 import static android.Manifest.permission.ACCESS_WIFI_STATE;
@@ -42,17 +49,33 @@ public class WiFiBackendHelper extends AbstractBackendHelper {
     private final static IntentFilter wifiBroadcastFilter =
             new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION);
 
+    /**
+     * Default for {@link #setMaxPassiveAge(long)}.
+     */
+    public static final long DEFAULT_MAX_PASSIVE_AGE = 60 * 1000;
+
     private final Listener listener;
     private final WifiManager wifiManager;
     private final Set<WiFi> wiFis = new HashSet<WiFi>();
+    private final Map<String, WiFi> recentWiFis = new HashMap<String, WiFi>();
     private final BroadcastReceiver wifiBroadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            onWiFisChanged();
+            onScanResults(intent.getBooleanExtra(WifiManager.EXTRA_RESULTS_UPDATED, true),
+                    wifiManager.getScanResults());
         }
     };
 
     private boolean ignoreNomap = true;
+    private ScanMode scanMode = ScanMode.ACTIVE;
+    private ScanMode requestedScanMode;
+    private long maxPassiveAge = DEFAULT_MAX_PASSIVE_AGE;
+    private long lastResultsTime;
+    private long mergeWindow;
+    private long rssiHalfLife;
+    private boolean reuseWiFis;
+    private Map<String, WiFi> previousScan = new HashMap<String, WiFi>();
+    private Map<String, WiFi> currentScan = new HashMap<String, WiFi>();
 
     /**
      * Create a new instance of {@link WiFiBackendHelper}. Call this in
@@ -61,13 +84,39 @@ public class WiFiBackendHelper extends AbstractBackendHelper {
      * @throws IllegalArgumentException if either context or listener is null.
      */
     public WiFiBackendHelper(Context context, Listener listener) {
+        this(context, listener, true);
+    }
+
+    /**
+     * Create a new instance of {@link WiFiBackendHelper} that is only used via
+     * {@link #subscribe(Listener, long, Executor)}.
+     *
+     * @throws IllegalArgumentException if context is null.
+     */
+    public WiFiBackendHelper(Context context) {
+        this(context, null, false);
+    }
+
+    private WiFiBackendHelper(Context context, Listener listener, boolean listenerRequired) {
         super(context);
-        if (listener == null)
+        if (listenerRequired && listener == null)
             throw new IllegalArgumentException("listener must not be null");
         this.listener = listener;
         this.wifiManager = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
     }
 
+    /**
+     * Subscribe to the Wi-Fis seen by this helper, in addition to the listener passed to the
+     * constructor. Subscriptions share the receivers and scans of this helper.
+     *
+     * @param minInterval minimum time in milliseconds between two deliveries to the listener.
+     * @param executor    executor to call the listener on, or {@code null} to call it directly.
+     * @throws IllegalArgumentException if listener is null or minInterval is not positive.
+     */
+    public Subscription<Listener> subscribe(Listener listener, long minInterval, Executor executor) {
+        return addSubscription(listener, minInterval, executor);
+    }
+
     /**
      * Sets whether to ignore the "_nomap" flag on Wi-Fi SSIDs or not.
      * <p/>
@@ -81,30 +130,117 @@ public class WiFiBackendHelper extends AbstractBackendHelper {
     }
 
     /**
-     * Call this in {@link LocationBackendService#onOpen()}.
+     * Sets whether {@link WiFi} instances of the previous scan are reused for unchanged scan
+     * results.
+     * <p/>
+     * System scan results often contain many entries unchanged since the last scan. Reusing those
+     * saves allocating hundreds of objects per scan in dense environments. As {@link WiFi} is
+     * immutable, this is safe, but listeners will see the same instances in several scans.
+     * <p/>
+     * Default is {@code false}.
+     */
+    public void setReuseWiFis(boolean reuseWiFis) {
+        this.reuseWiFis = reuseWiFis;
+    }
+
+    /**
+     * Sets whether this helper requests Wi-Fi scans itself or only uses scans requested by the
+     * system or other apps. See {@link ScanMode} for details. While a location request requires a
+     * power level, {@link HelperLocationBackendService} overrides this with the matching mode.
+     * <p/>
+     * Default is {@link ScanMode#ACTIVE}.
+     */
+    public synchronized void setScanMode(ScanMode scanMode) {
+        if (scanMode == null)
+            throw new IllegalArgumentException("scanMode must not be null");
+        this.scanMode = scanMode;
+    }
+
+    /**
+     * Overrides the scan mode set using {@link #setScanMode(ScanMode)}, as long as the current
+     * location request requires a specific mode. Pass {@code null} if it has no requirement.
+     */
+    synchronized void setRequestedScanMode(ScanMode requestedScanMode) {
+        this.requestedScanMode = requestedScanMode;
+    }
+
+    private synchronized ScanMode getEffectiveScanMode() {
+        return requestedScanMode != null ? requestedScanMode : scanMode;
+    }
+
+    /**
+     * Sets the maximum age of scan results in {@link ScanMode#PASSIVE} and
+     * {@link ScanMode#HYBRID}. Older results are ignored, and in hybrid mode a scan is requested if
+     * no newer results are available.
+     * <p/>
+     * Default is {@link #DEFAULT_MAX_PASSIVE_AGE}.
      */
-    public synchronized void onOpen() {
-        super.onOpen();
-        context.registerReceiver(wifiBroadcastReceiver, wifiBroadcastFilter);
+    public synchronized void setMaxPassiveAge(long maxPassiveAge) {
+        this.maxPassiveAge = maxPassiveAge;
     }
 
     /**
-     * Call this in {@link LocationBackendService#onClose()}.
+     * Sets for how long Wi-Fis missing in a scan are still reported, using their last observation.
+     * <p/>
+     * Single scans often miss some access points, especially on 5 GHz. With a merge window, those
+     * are kept from recent scans until they are older than {@code mergeWindow} milliseconds. Their
+     * RSSI decays exponentially with their age, halving the signal power (-3 dB) every
+     * {@code rssiHalfLife} milliseconds.
+     * <p/>
+     * Default is {@code 0}, only the latest scan is reported.
      */
-    public synchronized void onClose() {
-        super.onClose();
-        context.unregisterReceiver(wifiBroadcastReceiver);
+    public synchronized void setMergeWindow(long mergeWindow, long rssiHalfLife) {
+        if (mergeWindow > 0 && rssiHalfLife <= 0)
+            throw new IllegalArgumentException("rssiHalfLife must be positive");
+        this.mergeWindow = mergeWindow;
+        this.rssiHalfLife = rssiHalfLife;
+        if (mergeWindow <= 0) recentWiFis.clear();
+    }
+
+    @Override
+    protected void onStart() {
+        if (isReplaying()) return;
+        context.registerReceiver(wifiBroadcastReceiver, wifiBroadcastFilter, null, getHandler());
+    }
+
+    @Override
+    protected void onStop() {
+        if (!isReplaying()) context.unregisterReceiver(wifiBroadcastReceiver);
+        recentWiFis.clear();
     }
 
     /**
      * Call this in {@link LocationBackendService#update()}.
      */
-    public synchronized void onUpdate() {
-        if (!currentDataUsed) {
-            listener.onWiFisChanged(getWiFis());
-        } else {
-            scanWiFis();
+    public void onUpdate() {
+        synchronized (this) {
+            if (!isOpened()) return;
+            if (currentDataUsed) {
+                scanWiFis();
+                return;
+            }
+        }
+        dispatchWiFis();
+    }
+
+    private void dispatchWiFis() {
+        final Set<WiFi> wiFis = getWiFis();
+        if (listener != null) {
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onWiFisChanged(wiFis);
+                }
+            });
         }
+        if (!hasSubscriptions()) return;
+        final Set<WiFi> shared = Collections.unmodifiableSet(new HashSet<WiFi>(wiFis));
+        dispatchToSubscriptions(new Delivery<Listener>() {
+            @Override
+            public void deliver(Listener listener) {
+                listener.onWiFisChanged(shared);
+            }
+        });
     }
 
     @Override
@@ -112,37 +248,118 @@ public class WiFiBackendHelper extends AbstractBackendHelper {
         return new String[]{CHANGE_WIFI_STATE, ACCESS_WIFI_STATE, ACCESS_COARSE_LOCATION};
     }
 
-    private void onWiFisChanged() {
-        if (loadWiFis()) {
-            listener.onWiFisChanged(getWiFis());
+    /**
+     * Called with the scan results of the system after a scan.
+     *
+     * @param resultsUpdated whether the scan succeeded, see {@link WifiManager#EXTRA_RESULTS_UPDATED}.
+     */
+    void onScanResults(boolean resultsUpdated, List<ScanResult> scanResults) {
+        onWiFisParsed(resultsUpdated, parseWiFis(scanResults));
+    }
+
+    /**
+     * Called with the parsed scan results, or by {@link ScanReplayer} with recorded ones.
+     */
+    void onWiFisParsed(boolean resultsUpdated, List<WiFi> scanned) {
+        synchronized (this) {
+            if (recorder != null) recorder.recordWiFis(resultsUpdated, scanned);
+        }
+        if (getEffectiveScanMode() != ScanMode.ACTIVE) {
+            // Failed or throttled scans of others still send the broadcast, with old results
+            if (!resultsUpdated) return;
+            long newest = 0;
+            for (WiFi wiFi : scanned) {
+                newest = Math.max(newest, wiFi.getTime());
+            }
+            synchronized (this) {
+                lastResultsTime = Math.max(lastResultsTime, newest);
+            }
+            if (newest != 0 && !isFresh(newest)) return;
+            scanned = getFresh(scanned);
+        }
+        if (loadWiFis(scanned)) {
+            dispatchWiFis();
+        }
+    }
+
+    /**
+     * @return the Wi-Fis not older than the maximum passive age.
+     */
+    private List<WiFi> getFresh(List<WiFi> scanned) {
+        List<WiFi> fresh = new ArrayList<WiFi>(scanned.size());
+        for (WiFi wiFi : scanned) {
+            if (isFresh(wiFi.getTime())) fresh.add(wiFi);
         }
+        return fresh;
     }
 
     private synchronized boolean scanWiFis() {
-        if (state == State.DISABLED)
+        if (!isOpened())
             return false;
+        if (isReplaying()) {
+            state = State.SCANNING;
+            return true;
+        }
         if (wifiManager.isWifiEnabled() || isScanAlwaysAvailable()) {
             state = State.SCANNING;
-            wifiManager.startScan();
+            ScanMode scanMode = getEffectiveScanMode();
+            if (scanMode == ScanMode.ACTIVE || (scanMode == ScanMode.HYBRID && !isFresh(lastResultsTime))) {
+                wifiManager.startScan();
+            }
             return true;
         }
         return false;
     }
 
+    /**
+     * @return time of the scan result in milliseconds since boot.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    private static long getResultTime(ScanResult scanResult) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1)
+            return SystemClock.elapsedRealtime();
+        return scanResult.timestamp / 1000;
+    }
+
+    private boolean isFresh(long resultTime) {
+        return resultTime > 0 && SystemClock.elapsedRealtime() - resultTime <= maxPassiveAge;
+    }
+
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
     private boolean isScanAlwaysAvailable() {
         return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
                 && wifiManager.isScanAlwaysAvailable();
     }
 
-    private synchronized boolean loadWiFis() {
-        wiFis.clear();
-        currentDataUsed = false;
-        List<ScanResult> scanResults = wifiManager.getScanResults();
+    private List<WiFi> parseWiFis(List<ScanResult> scanResults) {
+        List<WiFi> scanned = new ArrayList<WiFi>();
+        if (scanResults == null) return scanned;
+        boolean reuse = reuseWiFis;
         for (ScanResult scanResult : scanResults) {
-            if (ignoreNomap && scanResult.SSID.toLowerCase(Locale.US).endsWith("_nomap")) continue;
-            wiFis.add(new WiFi(scanResult.BSSID, scanResult.level, frequencyToChannel(scanResult.frequency), scanResult.frequency));
+            if (ignoreNomap && isNomap(scanResult.SSID)) continue;
+            long time = getResultTime(scanResult);
+            WiFi wiFi = reuse ? previousScan.get(scanResult.BSSID) : null;
+            if (wiFi == null || wiFi.getRssi() != scanResult.level
+                    || wiFi.getFrequency() != scanResult.frequency || wiFi.getTime() != time) {
+                wiFi = new WiFi(scanResult.BSSID, scanResult.level, frequencyToChannel(scanResult.frequency),
+                        scanResult.frequency, time);
+            }
+            if (reuse) currentScan.put(scanResult.BSSID, wiFi);
+            scanned.add(wiFi);
         }
+        // Only keep instances of the latest scan for reuse
+        Map<String, WiFi> swap = previousScan;
+        previousScan = currentScan;
+        currentScan = swap;
+        currentScan.clear();
+        return scanned;
+    }
+
+    private synchronized boolean loadWiFis(Collection<WiFi> scanned) {
+        wiFis.clear();
+        wiFis.addAll(scanned);
+        if (mergeWindow > 0) mergeRecentWiFis(scanned);
+        currentDataUsed = false;
         if (state == State.DISABLING)
             state = State.DISABLED;
         switch (state) {
@@ -155,8 +372,38 @@ public class WiFiBackendHelper extends AbstractBackendHelper {
         }
     }
 
+    /**
+     * Add Wi-Fis of recent scans that are missing in the latest one, with decayed RSSI.
+     */
+    @SuppressWarnings("MagicNumber")
+    private void mergeRecentWiFis(Collection<WiFi> scanned) {
+        for (WiFi wiFi : scanned) {
+            recentWiFis.put(wiFi.getBssid(), wiFi);
+        }
+        long now = SystemClock.elapsedRealtime();
+        for (Iterator<WiFi> iterator = recentWiFis.values().iterator(); iterator.hasNext(); ) {
+            WiFi wiFi = iterator.next();
+            long age = now - wiFi.getTime();
+            if (age > mergeWindow) {
+                iterator.remove();
+            } else if (!wiFis.contains(wiFi)) {
+                int decay = (int) Math.round(10 * Math.log10(2) * age / rssiHalfLife);
+                wiFis.add(new WiFi(wiFi.getBssid(), wiFi.getRssi() - decay, wiFi.getChannel(),
+                        wiFi.getFrequency(), wiFi.getTime()));
+            }
+        }
+    }
+
+    /**
+     * Same as {@code ssid.toLowerCase().endsWith("_nomap")}, without allocating a new string for
+     * each scan result.
+     */
+    private static boolean isNomap(String ssid) {
+        return ssid != null && ssid.regionMatches(true, ssid.length() - 6, "_nomap", 0, 6);
+    }
+
     @SuppressWarnings("MagicNumber")
-    private static int frequencyToChannel(int freq) {
+    static int frequencyToChannel(int freq) {
         if (freq >= 2412 && freq <= 2484) {
             return (freq - 2412) / 5 + 1;
         } else if (freq >= 5170 && freq <= 5825) {
@@ -174,6 +421,26 @@ public class WiFiBackendHelper extends AbstractBackendHelper {
         return new HashSet<WiFi>(wiFis);
     }
 
+    /**
+     * How Wi-Fi scans are requested, see {@link #setScanMode(ScanMode)}.
+     */
+    public enum ScanMode {
+        /**
+         * Request a new scan whenever the last results were used.
+         */
+        ACTIVE,
+        /**
+         * Never request a scan, only use scans requested by the system or other apps, as long as
+         * they are not older than the maximum passive age.
+         */
+        PASSIVE,
+        /**
+         * Like {@link #PASSIVE}, but request a scan if the latest results are older than the
+         * maximum passive age.
+         */
+        HYBRID
+    }
+
     /**
      * Interface to listen for Wi-Fi scan results.
      */
@@ -189,17 +456,29 @@ public class WiFiBackendHelper extends AbstractBackendHelper {
      * <p/>
      * This does contain the BSSID (mac address) and the RSSI (in dBm) of a Wi-Fi.
      * Additional data is not provided, but also not usable for geolocation.
+     * <p/>
+     * Equality is based on the BSSID only, so that a set of Wi-Fis contains each access point
+     * once.
      */
     public static class WiFi {
+        private final long mac;
         private final String bssid;
         private final int rssi;
         private final int channel;
         private final int frequency;
+        private final long time;
 
         public String getBssid() {
             return bssid;
         }
 
+        /**
+         * @return the BSSID packed into a long, see {@link MacUtil#pack(String)}.
+         */
+        public long getMac() {
+            return mac;
+        }
+
         public int getRssi() {
             return rssi;
         }
@@ -212,15 +491,75 @@ public class WiFiBackendHelper extends AbstractBackendHelper {
             return frequency;
         }
 
+        /**
+         * @return time of the observation in milliseconds since boot, see
+         * {@link SystemClock#elapsedRealtime()}.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return milliseconds passed since this Wi-Fi was observed.
+         */
+        public long getAge() {
+            return SystemClock.elapsedRealtime() - time;
+        }
+
         public WiFi(String bssid, int rssi) {
             this(bssid, rssi, -1, -1);
         }
 
+        /**
+         * @deprecated Use {@link #WiFi(String, int, int, int)} instead.
+         */
+        @Deprecated
         public WiFi(String bssid, int rssi, Integer channel, Integer frequency) {
+            this(bssid, rssi, channel.intValue(), frequency.intValue());
+        }
+
+        /**
+         * Create a Wi-Fi observed just now.
+         */
+        public WiFi(String bssid, int rssi, int channel, int frequency) {
+            this(bssid, rssi, channel, frequency, SystemClock.elapsedRealtime());
+        }
+
+        /**
+         * @param time of the observation in milliseconds since boot
+         */
+        public WiFi(String bssid, int rssi, int channel, int frequency, long time) {
             this.bssid = wellFormedMac(bssid);
+            this.mac = MacUtil.pack(this.bssid);
             this.rssi = rssi;
             this.channel = channel;
             this.frequency = frequency;
+            this.time = time;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            WiFi wiFi = (WiFi) o;
+
+            return mac == wiFi.mac;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (mac ^ (mac >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return "WiFi{" +
+                    "bssid=" + bssid +
+                    ", rssi=" + rssi +
+                    ", channel=" + channel +
+                    ", frequency=" + frequency +
+                    '}';
         }
     }
 
@@ -231,6 +570,7 @@ public class WiFiBackendHelper extends AbstractBackendHelper {
      * @return well-formed mac address
      */
     public static String wellFormedMac(String mac) {
+        if (isWellFormedMac(mac)) return mac;
         int HEX_RADIX = 16;
         int[] bytes = new int[6];
         String[] splitAtColon = mac.split(":");
@@ -269,4 +609,18 @@ public class WiFiBackendHelper extends AbstractBackendHelper {
         }
         return sb.toString();
     }
+
+    /**
+     * @return true if mac is already in the form returned by {@link #wellFormedMac(String)}, as
+     * usually reported by the system.
+     */
+    static boolean isWellFormedMac(String mac) {
+        if (mac.length() != 17) return false;
+        for (int i = 0; i < 17; i++) {
+            char c = mac.charAt(i);
+            if (i % 3 == 2 ? c != ':' : !((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')))
+                return false;
+        }
+        return true;
+    }
 }
@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers Wi-Fi fingerprints of places with their position, and finds the places whose
+ * fingerprint is similar to a new scan without comparing the scan to every place.
+ * <p/>
+ * Each fingerprint is stored as a MinHash signature: for each of {@code bands * rows} hash
+ * functions, the smallest hash of the MAC addresses in the fingerprint. Two signatures agree in a
+ * given hash with a probability equal to the Jaccard similarity of their fingerprints. Signatures
+ * are split into bands of {@code rows} hashes, and places are filed in one bucket per band
+ * (locality-sensitive hashing). A scan is only compared to the places sharing at least one bucket
+ * with it, which are very likely to include all places with a similarity above
+ * {@code (1 / bands) ^ (1 / rows)}, and rarely include places below.
+ * <p/>
+ * Places are evicted oldest first once the capacity is reached. The index is persisted as
+ * signatures and positions only (see {@link #write(OutputStream)}), the buckets are rebuilt when
+ * reading it.
+ */
+public class WiFiPlaceIndex {
+    private static final int MAGIC = 0x4e4c5749;
+    private static final int VERSION = 1;
+    private static final double E6 = 1e6;
+
+    private final int bands;
+    private final int rows;
+    private final long[] seeds;
+    private final Map<Long, Bucket> buckets = new HashMap<Long, Bucket>();
+    private final LinkedHashMap<Integer, Place> places = new LinkedHashMap<Integer, Place>();
+
+    private int capacity = 10000;
+    private int nextId;
+
+    /**
+     * Create an index with 16 bands of 3 rows, for a similarity threshold of about {@code 0.4}.
+     */
+    public WiFiPlaceIndex() {
+        this(16, 3);
+    }
+
+    public WiFiPlaceIndex(int bands, int rows) {
+        if (bands <= 0 || rows <= 0)
+            throw new IllegalArgumentException("bands and rows must be positive");
+        this.bands = bands;
+        this.rows = rows;
+        this.seeds = new long[bands * rows];
+        for (int i = 0; i < seeds.length; i++) {
+            // Fixed seeds, persisted signatures stay valid
+            seeds[i] = mix(0x9e3779b97f4a7c15L * (i + 1));
+        }
+    }
+
+    /**
+     * Sets the maximum number of places. The oldest places are evicted first.
+     * <p/>
+     * Default is {@code 10000}.
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        evict();
+    }
+
+    public synchronized int size() {
+        return places.size();
+    }
+
+    /**
+     * Add a place.
+     *
+     * @return the id of the place, or -1 if the scan is empty.
+     */
+    public int insert(Collection<WiFiBackendHelper.WiFi> wiFis, double latitude, double longitude) {
+        int[] signature = getSignature(wiFis);
+        if (signature == null) return -1;
+        synchronized (this) {
+            int id = nextId++;
+            add(new Place(id, signature, latitude, longitude));
+            evict();
+            return id;
+        }
+    }
+
+    /**
+     * Remove a place.
+     *
+     * @return whether the place was in the index.
+     */
+    public synchronized boolean remove(int id) {
+        Place place = places.remove(id);
+        if (place == null) return false;
+        unfile(place);
+        return true;
+    }
+
+    /**
+     * @param minSimilarity places with a lower estimated similarity are left out.
+     * @return the places most similar to the scan, most similar first.
+     */
+    public List<Match> query(Collection<WiFiBackendHelper.WiFi> wiFis, float minSimilarity, int maxResults) {
+        int[] signature = getSignature(wiFis);
+        List<Match> matches = new ArrayList<Match>();
+        if (signature == null || maxResults <= 0) return matches;
+        synchronized (this) {
+            Set<Integer> candidates = new HashSet<Integer>();
+            for (int band = 0; band < bands; band++) {
+                Bucket bucket = buckets.get(getBucketKey(signature, band));
+                if (bucket == null) continue;
+                for (int i = 0; i < bucket.size; i++) {
+                    if (!candidates.add(bucket.ids[i])) continue;
+                    Place place = places.get(bucket.ids[i]);
+                    float similarity = getSimilarity(signature, place.signature);
+                    if (similarity >= minSimilarity) {
+                        matches.add(new Match(place.id, place.latitude, place.longitude, similarity));
+                    }
+                }
+            }
+        }
+        Collections.sort(matches, BY_SIMILARITY);
+        return matches.size() > maxResults ? new ArrayList<Match>(matches.subList(0, maxResults)) : matches;
+    }
+
+    /**
+     * Write all places, oldest first. The result takes {@code 12 + 4 * bands * rows} bytes per
+     * place.
+     */
+    public synchronized void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(bands);
+        data.writeInt(rows);
+        data.writeInt(places.size());
+        for (Place place : places.values()) {
+            data.writeInt(place.id);
+            data.writeInt((int) Math.round(place.latitude * E6));
+            data.writeInt((int) Math.round(place.longitude * E6));
+            for (int hash : place.signature) {
+                data.writeInt(hash);
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Read places written by {@link #write(OutputStream)}. The index has the default capacity,
+     * or the number of places read if larger.
+     *
+     * @throws IOException if the stream does not contain a place index.
+     */
+    public static WiFiPlaceIndex read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != MAGIC)
+            throw new IOException("Not a Wi-Fi place index");
+        int version = data.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported index version: " + version);
+        int bands = data.readInt();
+        int rows = data.readInt();
+        int count = data.readInt();
+        if (bands <= 0 || rows <= 0 || count < 0)
+            throw new IOException("Corrupt Wi-Fi place index");
+        WiFiPlaceIndex index = new WiFiPlaceIndex(bands, rows);
+        index.capacity = Math.max(index.capacity, count);
+        for (int i = 0; i < count; i++) {
+            int id = data.readInt();
+            double latitude = data.readInt() / E6;
+            double longitude = data.readInt() / E6;
+            int[] signature = new int[bands * rows];
+            for (int j = 0; j < signature.length; j++) {
+                signature[j] = data.readInt();
+            }
+            index.add(new Place(id, signature, latitude, longitude));
+            index.nextId = Math.max(index.nextId, id + 1);
+        }
+        return index;
+    }
+
+    private void add(Place place) {
+        Place previous = places.put(place.id, place);
+        if (previous != null) unfile(previous);
+        for (int band = 0; band < bands; band++) {
+            long key = getBucketKey(place.signature, band);
+            Bucket bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new Bucket();
+                buckets.put(key, bucket);
+            }
+            bucket.add(place.id);
+        }
+    }
+
+    private void evict() {
+        for (Iterator<Place> iterator = places.values().iterator(); places.size() > capacity; ) {
+            Place place = iterator.next();
+            iterator.remove();
+            unfile(place);
+        }
+    }
+
+    private void unfile(Place place) {
+        for (int band = 0; band < bands; band++) {
+            long key = getBucketKey(place.signature, band);
+            Bucket bucket = buckets.get(key);
+            if (bucket != null && bucket.remove(place.id) && bucket.size == 0) {
+                buckets.remove(key);
+            }
+        }
+    }
+
+    private int[] getSignature(Collection<WiFiBackendHelper.WiFi> wiFis) {
+        if (wiFis == null || wiFis.isEmpty()) return null;
+        int[] signature = new int[seeds.length];
+        for (int i = 0; i < signature.length; i++) {
+            signature[i] = Integer.MAX_VALUE;
+        }
+        for (WiFiBackendHelper.WiFi wiFi : wiFis) {
+            long mac = wiFi.getMac();
+            for (int i = 0; i < signature.length; i++) {
+                int hash = (int) (mix(mac ^ seeds[i]) >>> 33);
+                if (hash < signature[i]) signature[i] = hash;
+            }
+        }
+        return signature;
+    }
+
+    private long getBucketKey(int[] signature, int band) {
+        int hash = 1;
+        for (int i = band * rows; i < (band + 1) * rows; i++) {
+            hash = 31 * hash + signature[i];
+        }
+        return ((long) band << 32) | (hash & 0xffffffffL);
+    }
+
+    /**
+     * The share of agreeing hashes, an estimate for the Jaccard similarity of the fingerprints.
+     */
+    private static float getSimilarity(int[] a, int[] b) {
+        int equal = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) equal++;
+        }
+        return (float) equal / a.length;
+    }
+
+    /**
+     * Finalizer of SplitMix64, spreads similar inputs (such as MAC addresses of the same vendor)
+     * over all bits.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static final Comparator<Match> BY_SIMILARITY = new Comparator<Match>() {
+        @Override
+        public int compare(Match lhs, Match rhs) {
+            return Float.compare(rhs.similarity, lhs.similarity);
+        }
+    };
+
+    public static class Match {
+        private final int id;
+        private final double latitude;
+        private final double longitude;
+        private final float similarity;
+
+        private Match(int id, double latitude, double longitude, float similarity) {
+            this.id = id;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.similarity = similarity;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public double getLatitude() {
+            return latitude;
+        }
+
+        public double getLongitude() {
+            return longitude;
+        }
+
+        /**
+         * @return estimated Jaccard similarity of the scan and the fingerprint of the place.
+         */
+        public float getSimilarity() {
+            return similarity;
+        }
+
+        @Override
+        public String toString() {
+            return "Match{" +
+                    "id=" + id +
+                    ", latitude=" + latitude +
+                    ", longitude=" + longitude +
+                    ", similarity=" + similarity +
+                    '}';
+        }
+    }
+
+    private static class Place {
+        private final int id;
+        private final int[] signature;
+        private final double latitude;
+        private final double longitude;
+
+        private Place(int id, int[] signature, double latitude, double longitude) {
+            this.id = id;
+            this.signature = signature;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+    }
+
+    private static class Bucket {
+        private int[] ids = new int[2];
+        private int size;
+
+        private void add(int id) {
+            if (size == ids.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(ids, 0, grown, 0, size);
+                ids = grown;
+            }
+            ids[size++] = id;
+        }
+
+        private boolean remove(int id) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id) {
+                    ids[i] = ids[--size];
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.os.Bundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parses service metadata the way the package manager returns it: numeric values as numbers,
+ * others as strings.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class BackendDescriptorTest {
+
+    @Test
+    public void parsesNumbersAndStrings() {
+        Bundle metadata = new Bundle();
+        metadata.putInt(Constants.METADATA_BACKEND_LATENCY, 50);
+        metadata.putString(Constants.METADATA_BACKEND_MIN_INTERVAL, " 60000 ");
+        BackendDescriptor descriptor = BackendDescriptor.fromMetadata(metadata);
+        assertEquals(50, descriptor.getLatency());
+        assertEquals(60000, descriptor.getMinInterval());
+
+        metadata.putString(Constants.METADATA_BACKEND_LATENCY, "50");
+        metadata.putFloat(Constants.METADATA_BACKEND_MIN_INTERVAL, 1000.5f);
+        descriptor = BackendDescriptor.fromMetadata(metadata);
+        assertEquals(50, descriptor.getLatency());
+        assertEquals(1000, descriptor.getMinInterval());
+    }
+
+    @Test
+    public void parsesPowerLevels() {
+        assertEquals(BackendRequest.POWER_LOW, parsePower("low"));
+        assertEquals(BackendRequest.POWER_MEDIUM, parsePower(" Medium "));
+        assertEquals(BackendRequest.POWER_HIGH, parsePower("HIGH"));
+        Bundle metadata = new Bundle();
+        metadata.putInt(Constants.METADATA_BACKEND_POWER, BackendRequest.POWER_MEDIUM);
+        assertEquals(BackendRequest.POWER_MEDIUM, BackendDescriptor.fromMetadata(metadata).getPower());
+    }
+
+    @Test
+    public void parsesSources() {
+        assertEquals(BackendDescriptor.SOURCE_CELL | BackendDescriptor.SOURCE_WIFI, parseSources("cell|wifi"));
+        assertEquals(BackendDescriptor.SOURCE_WIFI | BackendDescriptor.SOURCE_BLUETOOTH
+                | BackendDescriptor.SOURCE_NETWORK, parseSources("WiFi, bluetooth network"));
+        // Unknown sources are ignored
+        assertEquals(BackendDescriptor.SOURCE_CELL, parseSources("cell|gps"));
+
+        Bundle metadata = new Bundle();
+        metadata.putString(Constants.METADATA_BACKEND_SOURCES, "cell|wifi");
+        BackendDescriptor descriptor = BackendDescriptor.fromMetadata(metadata);
+        assertTrue(descriptor.usesSource(BackendDescriptor.SOURCE_WIFI));
+        assertFalse(descriptor.usesSource(BackendDescriptor.SOURCE_BLUETOOTH));
+    }
+
+    @Test
+    public void fallsBackOnMissingOrInvalidValues() {
+        assertSame(BackendDescriptor.UNKNOWN, BackendDescriptor.fromMetadata(null));
+        assertUnknown(BackendDescriptor.fromMetadata(new Bundle()));
+
+        Bundle metadata = new Bundle();
+        metadata.putString(Constants.METADATA_BACKEND_LATENCY, "fast");
+        metadata.putString(Constants.METADATA_BACKEND_POWER, "turbo");
+        metadata.putInt(Constants.METADATA_BACKEND_SOURCES, 3);
+        metadata.putBoolean(Constants.METADATA_BACKEND_MIN_INTERVAL, true);
+        assertUnknown(BackendDescriptor.fromMetadata(metadata));
+
+        metadata.putInt(Constants.METADATA_BACKEND_POWER, 7);
+        assertEquals(BackendRequest.POWER_NO_REQUIREMENT, BackendDescriptor.fromMetadata(metadata).getPower());
+        metadata.putInt(Constants.METADATA_BACKEND_POWER, BackendRequest.POWER_NO_REQUIREMENT);
+        assertEquals(BackendRequest.POWER_NO_REQUIREMENT, BackendDescriptor.fromMetadata(metadata).getPower());
+    }
+
+    private static void assertUnknown(BackendDescriptor descriptor) {
+        assertEquals(-1, descriptor.getLatency());
+        assertEquals(BackendRequest.POWER_NO_REQUIREMENT, descriptor.getPower());
+        assertEquals(0, descriptor.getSources());
+        assertEquals(-1, descriptor.getMinInterval());
+    }
+
+    private static int parsePower(String power) {
+        Bundle metadata = new Bundle();
+        metadata.putString(Constants.METADATA_BACKEND_POWER, power);
+        return BackendDescriptor.fromMetadata(metadata).getPower();
+    }
+
+    private static int parseSources(String sources) {
+        Bundle metadata = new Bundle();
+        metadata.putString(Constants.METADATA_BACKEND_SOURCES, sources);
+        return BackendDescriptor.fromMetadata(metadata).getSources();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.ServiceInfo;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowPackageManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Checks that {@link BackendMetadataRegistry} keeps metadata until a package broadcast for its
+ * package, also for packages that were not installed.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class BackendMetadataRegistryTest {
+    private static final String PACKAGE = "org.example.backend";
+    private static final ComponentName SERVICE = new ComponentName(PACKAGE, PACKAGE + ".BackendService");
+
+    private ShadowPackageManager packageManager;
+    private BackendMetadataRegistry registry;
+
+    @Before
+    public void setUp() {
+        packageManager = shadowOf(RuntimeEnvironment.application.getPackageManager());
+        registry = new BackendMetadataRegistry(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void keepsMetadataUntilPackageChanges() {
+        install("2", "Old summary");
+        assertEquals("2", registry.getApiVersion(PACKAGE));
+        assertEquals("Old summary", registry.getSummary(SERVICE));
+
+        install("3", "New summary");
+        assertEquals("2", registry.getApiVersion(PACKAGE));
+        assertEquals("Old summary", registry.getSummary(SERVICE));
+        // Broadcasts for other packages keep the entries
+        broadcast(Intent.ACTION_PACKAGE_REPLACED, "org.example.other");
+        assertEquals("2", registry.getApiVersion(PACKAGE));
+
+        broadcast(Intent.ACTION_PACKAGE_REPLACED, PACKAGE);
+        assertEquals("3", registry.getApiVersion(PACKAGE));
+        assertEquals("New summary", registry.getSummary(SERVICE));
+    }
+
+    @Test
+    public void forgetsMissingPackagesWhenAdded() {
+        assertNull(registry.getApiVersion(PACKAGE));
+        assertNull(registry.getSummary(SERVICE));
+        assertEquals(BackendDescriptor.UNKNOWN.toString(), registry.getDescriptor(SERVICE).toString());
+
+        install("3", "Summary");
+        assertNull(registry.getApiVersion(PACKAGE));
+        assertNull(registry.getSummary(SERVICE));
+        broadcast(Intent.ACTION_PACKAGE_ADDED, PACKAGE);
+        assertEquals("3", registry.getApiVersion(PACKAGE));
+        assertEquals("Summary", registry.getSummary(SERVICE));
+
+        packageManager.removePackage(PACKAGE);
+        broadcast(Intent.ACTION_PACKAGE_REMOVED, PACKAGE);
+        assertNull(registry.getApiVersion(PACKAGE));
+        assertNull(registry.getSummary(SERVICE));
+    }
+
+    @Test
+    public void forgetsServiceMetadataWhenComponentsChange() {
+        install("3", "Summary");
+        assertEquals("Summary", registry.getSummary(SERVICE));
+        packageManager.addOrUpdateService(createService("Changed summary"));
+        broadcast(Intent.ACTION_PACKAGE_CHANGED, PACKAGE);
+        assertEquals("Changed summary", registry.getSummary(SERVICE));
+    }
+
+    private void install(String apiVersion, String summary) {
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = PACKAGE;
+        packageInfo.applicationInfo = new ApplicationInfo();
+        packageInfo.applicationInfo.packageName = PACKAGE;
+        packageInfo.applicationInfo.metaData = new Bundle();
+        packageInfo.applicationInfo.metaData.putString(Constants.METADATA_API_VERSION, apiVersion);
+        packageInfo.services = new ServiceInfo[]{createService(summary)};
+        packageInfo.services[0].applicationInfo = packageInfo.applicationInfo;
+        packageManager.installPackage(packageInfo);
+    }
+
+    private static ServiceInfo createService(String summary) {
+        ServiceInfo service = new ServiceInfo();
+        service.packageName = PACKAGE;
+        service.name = SERVICE.getClassName();
+        service.metaData = new Bundle();
+        service.metaData.putString(Constants.METADATA_BACKEND_SUMMARY, summary);
+        return service;
+    }
+
+    private static void broadcast(String action, String packageName) {
+        RuntimeEnvironment.application.sendBroadcast(new Intent(action, Uri.fromParts("package", packageName, null)));
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+}
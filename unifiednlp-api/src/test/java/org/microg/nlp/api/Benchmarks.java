@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measurements for the {@code *Benchmark} classes. Benchmarks are left out of the unit tests,
+ * run them with {@code ./gradlew :unifiednlp-api:testDebugUnitTest -Pbenchmark}.
+ */
+final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    /**
+     * Runs the task in batches of {@code rounds} runs, after a batch for warm-up.
+     *
+     * @return nanoseconds per run in the fastest batch, which is the least disturbed by garbage
+     * collection and compilation.
+     */
+    static long bestNanosPerRun(Runnable task, int rounds, int batches) {
+        long best = Long.MAX_VALUE;
+        for (int batch = 0; batch <= batches; batch++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                task.run();
+            }
+            if (batch > 0) best = Math.min(best, (System.nanoTime() - start) / rounds);
+        }
+        return best;
+    }
+
+    /**
+     * @return bytes allocated per run of the task, after one run for warm-up, or -1 if the JVM
+     * can't tell.
+     */
+    static long bytesPerRun(Runnable task, int rounds) {
+        task.run();
+        long before = allocatedBytes();
+        if (before < 0) return -1;
+        for (int i = 0; i < rounds; i++) {
+            task.run();
+        }
+        return (allocatedBytes() - before) / rounds;
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far, or -1 if the JVM can't tell.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled()) return -1;
+        return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static void report(String line) {
+        System.out.println(line);
+    }
+}
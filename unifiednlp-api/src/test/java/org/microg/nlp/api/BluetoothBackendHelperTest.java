@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.bluetooth.le.ScanResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds discoveries and LE batches into {@link BluetoothBackendHelper}, the way its broadcast
+ * receiver and scan callback do, and checks what is delivered. Time and allocations are measured
+ * by {@link HelperBenchmark}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class BluetoothBackendHelperTest {
+    private final AtomicInteger deliveries = new AtomicInteger();
+    private volatile Set<BluetoothBackendHelper.Bluetooth> lastDelivery;
+    private BluetoothBackendHelper helper;
+
+    @Before
+    public void setUp() {
+        helper = new BluetoothBackendHelper(RuntimeEnvironment.application, new BluetoothBackendHelper.Listener() {
+            @Override
+            public void onBluetoothChanged(Set<BluetoothBackendHelper.Bluetooth> bluetooth) {
+                lastDelivery = bluetooth;
+                deliveries.incrementAndGet();
+            }
+        });
+        helper.setReplaying(true);
+        helper.onOpen();
+    }
+
+    @After
+    public void tearDown() {
+        if (helper.isOpened()) helper.onClose();
+    }
+
+    @Test
+    public void deliversEveryDeviceOfLargeDiscoveries() {
+        discover(addresses(1000));
+        assertEquals(1000, lastDelivery.size());
+        // A new discovery replaces the devices of the previous one
+        discover(addresses(10));
+        assertEquals(10, lastDelivery.size());
+    }
+
+    @Test
+    public void discoveryWithoutDevicesIsReported() {
+        discover(new String[0]);
+        assertEquals(1, deliveries.get());
+        assertTrue(lastDelivery.isEmpty());
+    }
+
+    @Test
+    public void emptyLeBatchIsReported() {
+        helper.onUpdate();
+        helper.onLeScanResults(new ArrayList<ScanResult>());
+        assertEquals(1, deliveries.get());
+        assertTrue(lastDelivery.isEmpty());
+        assertEquals(AbstractBackendHelper.State.WAITING, helper.state);
+    }
+
+    @Test
+    public void closingWhileScanningDisablesOnDiscoveryFinished() {
+        helper.onUpdate();
+        assertEquals(AbstractBackendHelper.State.SCANNING, helper.state);
+        helper.onClose();
+        helper.onDiscoveryStarted();
+        helper.onDeviceFound(TestScans.mac(1), null, -50);
+        helper.onDiscoveryFinished();
+        assertEquals(AbstractBackendHelper.State.DISABLED, helper.state);
+        assertEquals(0, deliveries.get());
+    }
+
+    private void discover(String[] addresses) {
+        helper.onUpdate();
+        helper.onDiscoveryStarted();
+        for (int i = 0; i < addresses.length; i++) {
+            helper.onDeviceFound(addresses[i], null, -40 - i % 60);
+        }
+        helper.onDiscoveryFinished();
+    }
+
+    private static String[] addresses(int count) {
+        String[] addresses = new String[count];
+        for (int i = 0; i < count; i++) {
+            addresses[i] = TestScans.mac(i);
+        }
+        return addresses;
+    }
+}
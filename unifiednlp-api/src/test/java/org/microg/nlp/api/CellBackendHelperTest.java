@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.Manifest;
+import android.os.Build;
+import android.telephony.CellInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds generated cell info into {@link CellBackendHelper} and checks what is delivered. Time and
+ * allocations are measured by {@link HelperBenchmark}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class CellBackendHelperTest {
+    private static final String OPERATOR = "26201";
+
+    private final AtomicInteger deliveries = new AtomicInteger();
+    private volatile Set<CellBackendHelper.Cell> lastDelivery;
+    private CellBackendHelper helper;
+
+    @Before
+    public void setUp() {
+        helper = new CellBackendHelper(RuntimeEnvironment.application, new CellBackendHelper.Listener() {
+            @Override
+            public void onCellsChanged(Set<CellBackendHelper.Cell> cells) {
+                lastDelivery = cells;
+                deliveries.incrementAndGet();
+            }
+        });
+        helper.setReplaying(true);
+        helper.onOpen();
+    }
+
+    @After
+    public void tearDown() {
+        if (helper.isOpened()) helper.onClose();
+    }
+
+    @Test
+    public void deliversEveryCellOfLargeScans() {
+        loadCells(1, TestScans.cellInfo(0, 500));
+        assertEquals(500, lastDelivery.size());
+    }
+
+    @Test
+    public void mergesSubscriptions() {
+        loadCells(1, TestScans.cellInfo(0, 10));
+        // Second modem sees five of the same cells and five others
+        loadCells(2, TestScans.cellInfo(5, 10));
+        assertEquals(15, lastDelivery.size());
+        for (CellBackendHelper.Cell cell : lastDelivery) {
+            assertEquals(cell.getCid() < 1010 ? 1 : 2, cell.getSubscriptionId());
+        }
+    }
+
+    @Test
+    public void unchangedScanWithinHysteresisCompletesScan() {
+        helper.setSignalHysteresis(5);
+        List<CellInfo> cellInfo = TestScans.cellInfo(0, 10);
+        loadCells(1, cellInfo);
+        assertEquals(1, deliveries.get());
+        loadCells(1, cellInfo);
+        assertEquals(1, deliveries.get());
+        assertEquals(AbstractBackendHelper.State.WAITING, helper.state);
+        // Not reported, so the next update scans again
+        helper.onUpdate();
+        assertEquals(AbstractBackendHelper.State.SCANNING, helper.state);
+        assertEquals(1, deliveries.get());
+    }
+
+    @Test
+    public void tracksServingCells() {
+        loadCells(1, TestScans.cellInfo(0, 10));
+        Set<CellBackendHelper.Cell> servingCells = helper.getServingCells();
+        assertEquals(1, servingCells.size());
+        assertEquals(1000, servingCells.iterator().next().getCid());
+        loadCells(1, TestScans.cellInfo(3, 10));
+        assertEquals(1003, helper.getServingCells().iterator().next().getCid());
+    }
+
+    @Test
+    public void closingWhileScanningDisablesOnResults() {
+        helper.onUpdate();
+        assertEquals(AbstractBackendHelper.State.SCANNING, helper.state);
+        helper.onClose();
+        assertEquals(AbstractBackendHelper.State.DISABLING, helper.state);
+        // Collectors are dropped on close, late results do not reopen the helper
+        helper.onCellInfoReplayed(1, OPERATOR, TestScans.cellInfo(0, 10), null);
+        assertTrue(helper.state == AbstractBackendHelper.State.DISABLING
+                || helper.state == AbstractBackendHelper.State.DISABLED);
+        helper.onOpen();
+        assertEquals(AbstractBackendHelper.State.WAITING, helper.state);
+        assertEquals(0, deliveries.get());
+    }
+
+    @Test
+    public void requiresFineLocationSinceQ() {
+        assertFalse(Arrays.asList(helper.getRequiredPermissions()).contains(Manifest.permission.ACCESS_FINE_LOCATION));
+        // Robolectric can't run Android 10 with legacy resources, pretend to be on it
+        int sdkInt = Build.VERSION.SDK_INT;
+        ReflectionHelpers.setStaticField(Build.VERSION.class, "SDK_INT", Build.VERSION_CODES.Q);
+        try {
+            assertTrue(Arrays.asList(helper.getRequiredPermissions()).contains(Manifest.permission.ACCESS_FINE_LOCATION));
+        } finally {
+            ReflectionHelpers.setStaticField(Build.VERSION.class, "SDK_INT", sdkInt);
+        }
+    }
+
+    private void loadCells(int subscriptionId, List<CellInfo> cellInfo) {
+        helper.onUpdate();
+        helper.onCellInfoReplayed(subscriptionId, OPERATOR, cellInfo, null);
+    }
+}
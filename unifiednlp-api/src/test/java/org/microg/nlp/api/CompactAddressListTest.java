@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.location.Address;
+import android.os.Parcel;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends {@link CompactAddressList} instances through a {@link Parcel} and checks which fields
+ * arrive.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class CompactAddressListTest {
+    private static final int ALL_FIELDS = (1 << 15) - 1;
+
+    @Test
+    public void keepsEachSelectedField() {
+        Address address = createAddress("Alexanderplatz", "Berlin");
+        for (int field = 1; field <= CompactAddressList.FIELD_LOCATION; field <<= 1) {
+            Address result = roundTrip(Collections.singletonList(address), field).toAddresses(Locale.US).get(0);
+            assertEquals(field == CompactAddressList.FIELD_FEATURE_NAME ? "Alexanderplatz" : null, result.getFeatureName());
+            assertEquals(field == CompactAddressList.FIELD_ADMIN_AREA ? "Berlin" : null, result.getAdminArea());
+            assertEquals(field == CompactAddressList.FIELD_SUB_ADMIN_AREA ? "Mitte" : null, result.getSubAdminArea());
+            assertEquals(field == CompactAddressList.FIELD_LOCALITY ? "Berlin" : null, result.getLocality());
+            assertEquals(field == CompactAddressList.FIELD_SUB_LOCALITY ? "Mitte" : null, result.getSubLocality());
+            assertEquals(field == CompactAddressList.FIELD_THOROUGHFARE ? "Alexanderplatz" : null, result.getThoroughfare());
+            assertEquals(field == CompactAddressList.FIELD_SUB_THOROUGHFARE ? "1" : null, result.getSubThoroughfare());
+            assertEquals(field == CompactAddressList.FIELD_PREMISES ? "Station" : null, result.getPremises());
+            assertEquals(field == CompactAddressList.FIELD_POSTAL_CODE ? "10178" : null, result.getPostalCode());
+            assertEquals(field == CompactAddressList.FIELD_COUNTRY_CODE ? "DE" : null, result.getCountryCode());
+            assertEquals(field == CompactAddressList.FIELD_COUNTRY_NAME ? "Germany" : null, result.getCountryName());
+            assertEquals(field == CompactAddressList.FIELD_PHONE ? "+49 30 0" : null, result.getPhone());
+            assertEquals(field == CompactAddressList.FIELD_URL ? "https://berlin.de" : null, result.getUrl());
+            assertEquals(field == CompactAddressList.FIELD_ADDRESS_LINES ? 1 : -1, result.getMaxAddressLineIndex());
+            assertEquals(field == CompactAddressList.FIELD_LOCATION, result.hasLatitude());
+            assertEquals(field == CompactAddressList.FIELD_LOCATION, result.hasLongitude());
+        }
+    }
+
+    @Test
+    public void keepsAllFields() {
+        Address address = createAddress("Alexanderplatz", "Berlin");
+        CompactAddressList list = roundTrip(Collections.singletonList(address), ALL_FIELDS);
+        assertEquals(ALL_FIELDS, list.getFields());
+        Address result = list.toAddresses(Locale.GERMANY).get(0);
+        assertEquals(Locale.GERMANY, result.getLocale());
+        assertEquals("Alexanderplatz", result.getFeatureName());
+        assertEquals("10178", result.getPostalCode());
+        assertEquals("https://berlin.de", result.getUrl());
+        assertEquals("Alexanderplatz 1", result.getAddressLine(0));
+        assertEquals("10178 Berlin", result.getAddressLine(1));
+        assertEquals(52.5219, result.getLatitude(), 0);
+        assertEquals(13.4132, result.getLongitude(), 0);
+    }
+
+    @Test
+    public void storesEachStringOnce() {
+        List<Address> addresses = Arrays.asList(createAddress("Alexanderplatz", "Berlin"),
+                createAddress("Hackescher Markt", "Berlin"));
+        int fields = CompactAddressList.FIELD_FEATURE_NAME | CompactAddressList.FIELD_LOCALITY
+                | CompactAddressList.FIELD_ADMIN_AREA | CompactAddressList.FIELD_ADDRESS_LINES;
+        CompactAddressList list = roundTrip(addresses, fields);
+        assertEquals("Hackescher Markt", list.getString(1, CompactAddressList.FIELD_FEATURE_NAME));
+        // The same string for each occurrence, also across fields and address lines
+        String berlin = list.getString(0, CompactAddressList.FIELD_LOCALITY);
+        assertEquals("Berlin", berlin);
+        assertSame(berlin, list.getString(1, CompactAddressList.FIELD_LOCALITY));
+        assertSame(berlin, list.getString(0, CompactAddressList.FIELD_ADMIN_AREA));
+        assertSame(list.toAddresses(Locale.US).get(0).getAddressLine(1),
+                list.toAddresses(Locale.US).get(1).getAddressLine(1));
+
+        Parcel distinct = Parcel.obtain();
+        Parcel repeated = Parcel.obtain();
+        try {
+            new CompactAddressList(Arrays.asList(createAddress("A", "Berlin"), createAddress("B", "Hamburg")),
+                    CompactAddressList.FIELD_LOCALITY).writeToParcel(distinct, 0);
+            new CompactAddressList(Arrays.asList(createAddress("A", "Berlin"), createAddress("B", "Berlin")),
+                    CompactAddressList.FIELD_LOCALITY).writeToParcel(repeated, 0);
+            assertTrue(repeated.dataSize() < distinct.dataSize());
+        } finally {
+            distinct.recycle();
+            repeated.recycle();
+        }
+    }
+
+    @Test
+    public void keepsAddressLinesPerAddress() {
+        Address threeLines = new Address(Locale.US);
+        threeLines.setAddressLine(0, "Alexanderplatz 1");
+        threeLines.setAddressLine(1, "10178 Berlin");
+        threeLines.setAddressLine(2, "Germany");
+        Address noLines = new Address(Locale.US);
+        Address gap = new Address(Locale.US);
+        gap.setAddressLine(0, "Alexanderplatz 1");
+        gap.setAddressLine(2, "Germany");
+        List<Address> result = roundTrip(Arrays.asList(threeLines, noLines, gap),
+                CompactAddressList.FIELD_ADDRESS_LINES).toAddresses(Locale.US);
+
+        assertEquals(3, result.size());
+        assertEquals(2, result.get(0).getMaxAddressLineIndex());
+        assertEquals("Germany", result.get(0).getAddressLine(2));
+        assertEquals(-1, result.get(1).getMaxAddressLineIndex());
+        assertEquals(2, result.get(2).getMaxAddressLineIndex());
+        assertEquals("Alexanderplatz 1", result.get(2).getAddressLine(0));
+        assertNull(result.get(2).getAddressLine(1));
+        assertEquals("Germany", result.get(2).getAddressLine(2));
+    }
+
+    @Test
+    public void keepsMissingFieldsMissing() {
+        Address empty = new Address(Locale.US);
+        CompactAddressList list = roundTrip(Collections.singletonList(empty), ALL_FIELDS);
+        assertNull(list.getString(0, CompactAddressList.FIELD_LOCALITY));
+        assertTrue(Double.isNaN(list.getLatitude(0)));
+        assertTrue(Double.isNaN(list.getLongitude(0)));
+        Address result = list.toAddresses(Locale.US).get(0);
+        assertNull(result.getLocality());
+        assertEquals(-1, result.getMaxAddressLineIndex());
+        assertFalse(result.hasLatitude());
+        assertFalse(result.hasLongitude());
+
+        // Fields not kept, or not a single string field
+        list = roundTrip(Collections.singletonList(createAddress("Alexanderplatz", "Berlin")),
+                CompactAddressList.FIELD_LOCALITY);
+        assertNull(list.getString(0, CompactAddressList.FIELD_FEATURE_NAME));
+        assertNull(list.getString(0, CompactAddressList.FIELD_LOCATION));
+        assertNull(list.getString(0, CompactAddressList.FIELD_LOCALITY | CompactAddressList.FIELD_FEATURE_NAME));
+        assertTrue(Double.isNaN(list.getLatitude(0)));
+
+        assertEquals(0, roundTrip(null, ALL_FIELDS).size());
+        assertTrue(roundTrip(Collections.<Address>emptyList(), ALL_FIELDS).toAddresses(Locale.US).isEmpty());
+    }
+
+    private static CompactAddressList roundTrip(List<Address> addresses, int fields) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            new CompactAddressList(addresses, fields).writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return CompactAddressList.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static Address createAddress(String featureName, String city) {
+        Address address = new Address(Locale.GERMANY);
+        address.setFeatureName(featureName);
+        address.setAdminArea(city);
+        address.setSubAdminArea("Mitte");
+        address.setLocality(city);
+        address.setSubLocality("Mitte");
+        address.setThoroughfare(featureName);
+        address.setSubThoroughfare("1");
+        address.setPremises("Station");
+        address.setPostalCode("10178");
+        address.setCountryCode("DE");
+        address.setCountryName("Germany");
+        address.setPhone("+49 30 0");
+        address.setUrl("https://berlin.de");
+        address.setAddressLine(0, featureName + " 1");
+        address.setAddressLine(1, "10178 " + city);
+        address.setLatitude(52.5219);
+        address.setLongitude(13.4132);
+        return address;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.location.Location;
+import android.os.SystemClock;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that {@link FingerprintLocationCache} reuses locations for similar scans and reports them
+ * as fresh.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class FingerprintLocationCacheTest {
+
+    @Test
+    public void cachedLocationHasCurrentTimes() {
+        FingerprintLocationCache cache = new FingerprintLocationCache();
+        Location location = new Location("test");
+        location.setTime(System.currentTimeMillis());
+        location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+        cache.put(wiFis(0, 8), null, location);
+
+        SystemClock.sleep(60 * 1000);
+        Location cached = cache.get(wiFis(0, 8), null);
+        assertNotNull(cached);
+        assertEquals(SystemClock.elapsedRealtimeNanos(), cached.getElapsedRealtimeNanos());
+    }
+
+    @Test
+    public void reusesSimilarScans() {
+        FingerprintLocationCache cache = new FingerprintLocationCache();
+        List<CellBackendHelper.Cell> cells = Collections.singletonList(
+                new CellBackendHelper.Cell(CellBackendHelper.Cell.CellType.LTE, 262, 1, 100, 1000, 0, -80));
+        cache.put(wiFis(0, 8), cells, new Location("test"));
+        // 8 of 10 emitters shared
+        assertNotNull(cache.get(wiFis(1, 8), cells));
+        // 6 of 12 emitters shared
+        assertNull(cache.get(wiFis(3, 8), cells));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    private static List<WiFiBackendHelper.WiFi> wiFis(int first, int count) {
+        List<WiFiBackendHelper.WiFi> wiFis = new ArrayList<WiFiBackendHelper.WiFi>(count);
+        for (int i = first; i < first + count; i++) {
+            wiFis.add(new WiFiBackendHelper.WiFi(String.format("00:11:22:33:44:%02x", i), -50 - i));
+        }
+        return wiFis;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.location.Address;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that identical requests share a lookup, that lookups in advance do not take the place of
+ * requested ones and that lookups that were shed or did not finish in time are not cached as
+ * "no address".
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class GeocoderBackendServiceTest {
+    private static final List<Address> ADDRESSES = Collections.singletonList(new Address(Locale.US));
+
+    @Test
+    public void coalescesIdenticalRequests() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        GeocoderBackendService service = new GeocoderBackendService() {
+            @Override
+            protected List<Address> getFromLocation(double latitude, double longitude, int maxResults, String locale) {
+                return ADDRESSES;
+            }
+
+            @Override
+            protected List<Address> getFromLocationName(String locationName, int maxResults,
+                    double lowerLeftLatitude, double lowerLeftLongitude, double upperRightLatitude,
+                    double upperRightLongitude, String locale) {
+                lookups.incrementAndGet();
+                await(release);
+                return new ArrayList<Address>(ADDRESSES);
+            }
+        };
+        final GeocoderBackend backend = GeocoderBackend.Stub.asInterface(service.getBackend());
+        final List<List<Address>> results = Collections.synchronizedList(new ArrayList<List<Address>>());
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            // Differently cased and padded names are the same request
+            final String name = i % 2 == 0 ? "Berlin" : " berlin ";
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        results.add(backend.getFromLocationName(name, 1, 52, 13, 53, 14, "en"));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        // All but the first request wait for the running lookup
+        while (service.getCoalescingRatio() < 0.75f) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, lookups.get());
+        assertEquals(4, results.size());
+        for (List<Address> result : results) {
+            assertSame(results.get(0), result);
+        }
+        assertEquals(0.75f, service.getCoalescingRatio(), 0);
+
+        // Requests after the lookup finished run their own
+        backend.getFromLocationName("Berlin", 1, 52, 13, 53, 14, "en");
+        assertEquals(2, lookups.get());
+        assertEquals(0.6f, service.getCoalescingRatio(), 0.0001f);
+    }
+
+    @Test
+    public void timedOutLookupIsNotCached() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        GeocoderBackendService service = new GeocoderBackendService() {
+            @Override
+            protected List<Address> getFromLocation(double latitude, double longitude, int maxResults, String locale) {
+                if (lookups.incrementAndGet() == 1) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        // Cancelled after the timeout
+                    }
+                }
+                return ADDRESSES;
+            }
+
+            @Override
+            protected List<Address> getFromLocationName(String locationName, int maxResults,
+                    double lowerLeftLatitude, double lowerLeftLongitude, double upperRightLatitude,
+                    double upperRightLongitude, String locale) {
+                return ADDRESSES;
+            }
+        };
+        service.setLookupTimeout(50);
+        service.setPrefetchEnabled(true);
+        service.getPrefetcher().setBudget(0);
+        GeocoderBackend backend = GeocoderBackend.Stub.asInterface(service.getBackend());
+
+        assertTrue(backend.getFromLocation(52.5, 13.4, 1, "en").isEmpty());
+        assertEquals(1, service.getTimedOutLookupCount());
+        assertEquals(ADDRESSES, backend.getFromLocation(52.5, 13.4, 1, "en"));
+        assertEquals(2, lookups.get());
+        // Now cached
+        assertEquals(ADDRESSES, backend.getFromLocation(52.5, 13.4, 1, "en"));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void shedLookupIsNotCached() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        GeocoderBackendService service = new GeocoderBackendService() {
+            @Override
+            protected List<Address> getFromLocation(double latitude, double longitude, int maxResults, String locale) {
+                if (latitude == 1) {
+                    started.countDown();
+                    await(release);
+                }
+                if (latitude == 3) lookups.incrementAndGet();
+                return ADDRESSES;
+            }
+
+            @Override
+            protected List<Address> getFromLocationName(String locationName, int maxResults,
+                    double lowerLeftLatitude, double lowerLeftLongitude, double upperRightLatitude,
+                    double upperRightLongitude, String locale) {
+                return ADDRESSES;
+            }
+        };
+        service.setMaxConcurrentLookups(1);
+        service.setMaxQueuedLookups(1);
+        service.setPrefetchEnabled(true);
+        service.getPrefetcher().setBudget(0);
+        GeocoderBackend backend = GeocoderBackend.Stub.asInterface(service.getBackend());
+
+        // One lookup running, one waiting
+        FutureTask<List<Address>> running = request(backend, 1, 0);
+        start(running);
+        started.await();
+        FutureTask<List<Address>> waiting = request(backend, 2, 0);
+        Thread waitingThread = start(waiting);
+        while (waitingThread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        assertTrue(backend.getFromLocation(3, 0, 1, "en").isEmpty());
+        assertEquals(1, service.getShedLookupCount());
+        assertEquals(0, lookups.get());
+        release.countDown();
+        assertEquals(ADDRESSES, running.get());
+        assertEquals(ADDRESSES, waiting.get());
+
+        assertEquals(ADDRESSES, backend.getFromLocation(3, 0, 1, "en"));
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void prefetchDoesNotTakeLookupThreads() throws Exception {
+        final CountDownLatch prefetching = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<double[]> prefetched = Collections.synchronizedList(new ArrayList<double[]>());
+        GeocoderBackendService service = new GeocoderBackendService() {
+            @Override
+            protected List<Address> getFromLocation(double latitude, double longitude, int maxResults, String locale) {
+                if (latitude > 50) {
+                    // Positions around 52.5, 13.4 are resolved only when released
+                    prefetched.add(new double[]{latitude, longitude});
+                    prefetching.countDown();
+                    await(release);
+                }
+                return ADDRESSES;
+            }
+
+            @Override
+            protected List<Address> getFromLocationName(String locationName, int maxResults,
+                    double lowerLeftLatitude, double lowerLeftLongitude, double upperRightLatitude,
+                    double upperRightLongitude, String locale) {
+                return ADDRESSES;
+            }
+        };
+        service.setMaxConcurrentLookups(1);
+        service.setMaxQueuedLookups(1);
+        service.setPrefetchEnabled(true);
+        service.getPrefetcher().setBudget(4);
+        GeocoderBackend backend = GeocoderBackend.Stub.asInterface(service.getBackend());
+        try {
+            service.getPrefetcher().onQuery(52.5, 13.4, 1, "en", ADDRESSES);
+            prefetching.await();
+            // The lookups in advance are stuck, requests still have the lookup thread and queue
+            for (int i = 0; i < 4; i++) {
+                assertEquals(ADDRESSES, backend.getFromLocation(i, 0, 1, "en"));
+            }
+            assertEquals(0, service.getShedLookupCount());
+
+            // A request for the tile being resolved in advance waits for that lookup
+            double[] tile = prefetched.get(0);
+            FutureTask<List<Address>> request = request(backend, tile[0], tile[1]);
+            start(request);
+            while (service.getCoalescingRatio() == 0) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            assertEquals(ADDRESSES, request.get());
+            int tileLookups = 0;
+            synchronized (prefetched) {
+                for (double[] position : prefetched) {
+                    if (position[0] == tile[0] && position[1] == tile[1]) tileLookups++;
+                }
+            }
+            assertEquals(1, tileLookups);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private static FutureTask<List<Address>> request(final GeocoderBackend backend,
+            final double latitude, final double longitude) {
+        return new FutureTask<List<Address>>(new Callable<List<Address>>() {
+            @Override
+            public List<Address> call() throws Exception {
+                return backend.getFromLocation(latitude, longitude, 1, "en");
+            }
+        });
+    }
+
+    private static Thread start(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.start();
+        return thread;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.content.Context;
+import android.net.wifi.ScanResult;
+import android.telephony.CellInfo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures time and allocations per emitter when the helpers load scans of increasing size, and
+ * fails on regressions by an order of magnitude.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class HelperBenchmark {
+    private static final int[] SCAN_SIZES = {10, 100, 1000, 5000};
+    private static final int ROUNDS = 20;
+    private static final int BATCHES = 5;
+    private static final long NANOS_PER_SCAN = 1000000;
+    private static final long NANOS_PER_EMITTER = 50000;
+    private static final long BYTES_PER_EMITTER = 2048;
+
+    private final Context context = RuntimeEnvironment.application;
+
+    @Test
+    public void wiFiScans() {
+        final WiFiBackendHelper helper = new WiFiBackendHelper(context);
+        helper.setReplaying(true);
+        helper.setReuseWiFis(true);
+        helper.onOpen();
+        for (int size : SCAN_SIZES) {
+            final List<ScanResult> scan = TestScans.scanResults(0, size);
+            measure("WiFiBackendHelper", size, new Runnable() {
+                @Override
+                public void run() {
+                    helper.onUpdate();
+                    helper.onScanResults(true, scan);
+                }
+            });
+        }
+        helper.onClose();
+    }
+
+    @Test
+    public void cellScans() {
+        final CellBackendHelper helper = new CellBackendHelper(context);
+        helper.setReplaying(true);
+        helper.onOpen();
+        for (int size : SCAN_SIZES) {
+            final List<CellInfo> cellInfo = TestScans.cellInfo(0, size);
+            measure("CellBackendHelper", size, new Runnable() {
+                @Override
+                public void run() {
+                    helper.onUpdate();
+                    helper.onCellInfoReplayed(1, "26201", cellInfo, null);
+                }
+            });
+        }
+        helper.onClose();
+    }
+
+    @Test
+    public void bluetoothDiscoveries() {
+        final BluetoothBackendHelper helper = new BluetoothBackendHelper(context);
+        helper.setReplaying(true);
+        helper.onOpen();
+        for (final int size : SCAN_SIZES) {
+            final String[] addresses = new String[size];
+            for (int i = 0; i < size; i++) {
+                addresses[i] = TestScans.mac(i);
+            }
+            measure("BluetoothBackendHelper", size, new Runnable() {
+                @Override
+                public void run() {
+                    helper.onUpdate();
+                    helper.onDiscoveryStarted();
+                    for (int i = 0; i < addresses.length; i++) {
+                        helper.onDeviceFound(addresses[i], null, -40 - i % 60);
+                    }
+                    helper.onDiscoveryFinished();
+                }
+            });
+        }
+        helper.onClose();
+    }
+
+    private static void measure(String helper, int size, Runnable scan) {
+        long nanos = Benchmarks.bestNanosPerRun(scan, ROUNDS, BATCHES);
+        long bytes = Benchmarks.bytesPerRun(scan, ROUNDS);
+        Benchmarks.report(helper + ": " + size + " emitters, " + nanos / size + " ns and "
+                + (bytes < 0 ? "?" : String.valueOf(bytes / size)) + " bytes each");
+        assertTrue(helper + ": " + size + " emitters took " + nanos + " ns",
+                nanos < NANOS_PER_SCAN + size * NANOS_PER_EMITTER);
+        assertTrue(helper + ": " + size + " emitters allocated " + bytes + " bytes",
+                bytes < size * BYTES_PER_EMITTER);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.net.wifi.ScanResult;
+import android.telephony.CellInfo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Calls onUpdate() and delivers scans from several threads while the helpers are closed and
+ * opened again, and checks the state machine stays consistent.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class HelperStateTest {
+    private static final int CYCLES = 200;
+    private static final int THREADS = 4;
+
+    @Test
+    public void wiFiHelperSurvivesConcurrentUpdateAndClose() throws Exception {
+        final WiFiBackendHelper helper = new WiFiBackendHelper(RuntimeEnvironment.application);
+        final List<ScanResult> scan = TestScans.scanResults(0, 50);
+        hammer(helper, new Runnable() {
+            @Override
+            public void run() {
+                helper.onScanResults(true, scan);
+            }
+        });
+    }
+
+    @Test
+    public void cellHelperSurvivesConcurrentUpdateAndClose() throws Exception {
+        final CellBackendHelper helper = new CellBackendHelper(RuntimeEnvironment.application);
+        final List<CellInfo> cellInfo = TestScans.cellInfo(0, 10);
+        hammer(helper, new Runnable() {
+            @Override
+            public void run() {
+                helper.onCellInfoReplayed(1, "26201", cellInfo, null);
+            }
+        });
+    }
+
+    @Test
+    public void bluetoothHelperSurvivesConcurrentUpdateAndClose() throws Exception {
+        final BluetoothBackendHelper helper = new BluetoothBackendHelper(RuntimeEnvironment.application);
+        hammer(helper, new Runnable() {
+            @Override
+            public void run() {
+                helper.onDiscoveryStarted();
+                helper.onDeviceFound(TestScans.mac(1), null, -50);
+                helper.onDiscoveryFinished();
+            }
+        });
+    }
+
+    /**
+     * Opens and closes the helper repeatedly, while other threads call onUpdate() and deliver
+     * scans. After each close, the helper must never get back to an opened state by itself.
+     */
+    private static void hammer(final AbstractBackendHelper helper, final Runnable deliverScan) throws Exception {
+        helper.setReplaying(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicBoolean closed = new AtomicBoolean(true);
+        for (int cycle = 0; cycle < CYCLES; cycle++) {
+            helper.onOpen();
+            closed.set(false);
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < THREADS; i++) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int j = 0; j < 20; j++) {
+                                helper.onUpdate();
+                                deliverScan.run();
+                                synchronized (helper) {
+                                    if (closed.get() && helper.isOpened())
+                                        throw new AssertionError("Reopened after close: " + helper.state);
+                                }
+                            }
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            start.countDown();
+            synchronized (helper) {
+                helper.onClose();
+                closed.set(true);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertNull(String.valueOf(failure.get()), failure.get());
+            assertFalse(helper.isOpened());
+            // Late results of a scan requested before closing do not reopen the helper
+            deliverScan.run();
+            assertFalse(helper.isOpened());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.content.Context;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.Scheduler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Opens a {@link HelperLocationBackendService} with helpers that are slow to start, and checks on
+ * the paused main looper in which order helpers start and scan.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class LazyStartupTest {
+    private final List<String> starts = new ArrayList<String>();
+    private Scheduler scheduler;
+    private CellBackendHelper cells;
+    private HelperLocationBackendService service;
+
+    @Before
+    public void setUp() {
+        scheduler = shadowOf(Looper.getMainLooper()).getScheduler();
+        scheduler.pause();
+        Context context = RuntimeEnvironment.application;
+        cells = new CellBackendHelper(context);
+        WiFiBackendHelper wiFis = new WiFiBackendHelper(context) {
+            @Override
+            protected void onStart() {
+                starts.add("wifi, cells " + cells.state);
+                super.onStart();
+            }
+        };
+        AbstractBackendHelper other = new AbstractBackendHelper(context) {
+            @Override
+            protected void onStart() {
+                starts.add("other, cells " + cells.state);
+            }
+        };
+        service = new HelperLocationBackendService() {
+        };
+        // Most expensive first
+        for (AbstractBackendHelper helper : new AbstractBackendHelper[]{other, wiFis, cells}) {
+            helper.setReplaying(true);
+            helper.setLooper(Looper.getMainLooper());
+            service.addHelper(helper);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        service.onClose();
+        scheduler.advanceToLastPostedRunnable();
+    }
+
+    @Test
+    public void lazyStartupScansCellsBeforeStartingOthers() {
+        service.setLazyStartup(true);
+        service.onOpen();
+        assertTrue(starts.isEmpty());
+        service.update();
+
+        // Opening the cell helper is the first task, and it scans right away
+        assertTrue(scheduler.runOneTask());
+        assertEquals(AbstractBackendHelper.State.SCANNING, cells.state);
+        assertTrue(starts.isEmpty());
+
+        scheduler.advanceToLastPostedRunnable();
+        assertEquals(Arrays.asList("wifi, cells SCANNING", "other, cells SCANNING"), starts);
+    }
+
+    @Test
+    public void eagerStartupStartsAllWhileOpening() {
+        service.onOpen();
+        // In no particular order, before opening returns
+        assertEquals(2, starts.size());
+    }
+}
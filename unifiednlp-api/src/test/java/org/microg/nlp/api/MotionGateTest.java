@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.os.SystemClock;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a change of the serving cell wakes the {@link MotionGate} for a while, even if the
+ * motion source reports the device still.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class MotionGateTest {
+
+    @Test
+    public void servingCellChangeWakesGate() {
+        MotionGate.ManualSource source = new MotionGate.ManualSource();
+        MotionGate gate = new MotionGate(source);
+        gate.setWakeBudget(1);
+        gate.setCellChangeTimeout(60 * 1000);
+        gate.start();
+        source.setMoving(false);
+        assertTrue(gate.isStill());
+        assertTrue(gate.tryWake());
+        assertFalse(gate.tryWake());
+
+        gate.onServingCellChanged();
+        assertFalse(gate.isStill());
+        SystemClock.sleep(60 * 1000);
+        // Still again, with a new wake budget
+        assertTrue(gate.isStill());
+        assertTrue(gate.tryWake());
+        gate.stop();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.os.Parcel;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Parcels {@link ObservationBatch}es and checks the observations survive unchanged.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class ObservationBatchTest {
+
+    @Test
+    public void keepsCellSignalsBeyondByteRange() {
+        List<CellBackendHelper.Cell> cells = Arrays.asList(
+                new CellBackendHelper.Cell(CellBackendHelper.Cell.CellType.NR, 262, 1, 100, 68719476735L, 503, -156, 1),
+                new CellBackendHelper.Cell(CellBackendHelper.Cell.CellType.LTE, 262, 1, 100, 1000, 20, -140, 1),
+                new CellBackendHelper.Cell(CellBackendHelper.Cell.CellType.GSM, 262, 1, 100, 1001, -1, Integer.MAX_VALUE, 1));
+        List<CellBackendHelper.Cell> parceled = parcel(new ObservationBatch(null, cells, null)).getCells();
+        assertEquals(cells.size(), parceled.size());
+        for (int i = 0; i < cells.size(); i++) {
+            assertEquals(cells.get(i), parceled.get(i));
+            assertEquals(cells.get(i).getSignal(), parceled.get(i).getSignal());
+        }
+    }
+
+    private static ObservationBatch parcel(ObservationBatch batch) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            batch.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return ObservationBatch.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
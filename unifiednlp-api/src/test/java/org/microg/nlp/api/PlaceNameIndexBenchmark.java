@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures prefix queries on a memory-mapped {@link PlaceNameIndex} of 1M places, without bounds
+ * and within small bounds. Small bounds are compared to an index with a single cell, which walks
+ * all places of the prefix and skips those out of bounds.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class PlaceNameIndexBenchmark {
+    private static final int PLACES = 1000000;
+    private static final int QUERIES = 200;
+    private static final int BATCHES = 3;
+    private static final String[] PREFIXES = {"b", "ber", "burgel", "mar", "wald"};
+
+    @Test
+    public void prefixQueries() throws IOException {
+        TestPlaceNames names = new TestPlaceNames(PLACES, 1);
+        File file = File.createTempFile("places", ".idx");
+        File singleCellFile = File.createTempFile("places", ".idx");
+        try {
+            long start = System.nanoTime();
+            final PlaceNameIndex index = names.createIndex(file, 1);
+            long buildNanos = System.nanoTime() - start;
+            final PlaceNameIndex singleCell = names.createIndex(singleCellFile, 360);
+
+            Random random = new Random(1);
+            final double[][] bounds = new double[QUERIES][];
+            for (int i = 0; i < QUERIES; i++) {
+                // About 200 km wide
+                double latitude = random.nextDouble() * 160 - 80;
+                double longitude = random.nextDouble() * 358 - 180;
+                bounds[i] = new double[]{latitude, longitude, latitude + 2, longitude + 2};
+            }
+            long unboundedNanos = Benchmarks.bestNanosPerRun(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < QUERIES; i++) {
+                        index.search(PREFIXES[i % PREFIXES.length], 10, 0, 0, 0, 0);
+                    }
+                }
+            }, 1, BATCHES) / QUERIES;
+            long boundedNanos = Benchmarks.bestNanosPerRun(new Query(index, bounds), 1, BATCHES) / QUERIES;
+            long singleCellNanos = Benchmarks.bestNanosPerRun(new Query(singleCell, bounds), 1, BATCHES) / QUERIES;
+            Benchmarks.report("PlaceNameIndex: " + PLACES + " places, " + file.length() / PLACES
+                    + " bytes and " + buildNanos / PLACES + " ns per place, " + unboundedNanos
+                    + " ns per query, " + boundedNanos + " ns within bounds, single cell "
+                    + singleCellNanos + " ns");
+            assertTrue("Query within bounds took " + boundedNanos + " ns, single cell " + singleCellNanos + " ns",
+                    boundedNanos * 10 < singleCellNanos);
+        } finally {
+            file.delete();
+            singleCellFile.delete();
+        }
+    }
+
+    private static class Query implements Runnable {
+        private final PlaceNameIndex index;
+        private final double[][] bounds;
+
+        private Query(PlaceNameIndex index, double[][] bounds) {
+            this.index = index;
+            this.bounds = bounds;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < bounds.length; i++) {
+                index.search(PREFIXES[i % PREFIXES.length], 10, bounds[i][0], bounds[i][1], bounds[i][2], bounds[i][3]);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks prefix matching, normalization and bounds of {@link PlaceNameIndex} searches, and
+ * compares them to a brute-force search. Query time is measured by {@link PlaceNameIndexBenchmark}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class PlaceNameIndexTest {
+
+    @Test
+    public void findsNamesStartingWithPrefix() throws IOException {
+        PlaceNameIndex index = build(new PlaceNameIndex.Builder()
+                .add("Bergen", 60.39, 5.32, 3, 1)
+                .add("Berlin", 52.52, 13.40, 5, 2)
+                .add("Bern", 46.95, 7.45, 4, 3)
+                .add("Bremen", 53.08, 8.80, 2, 4)
+                .add("Aachen", 50.78, 6.08, 1, 5));
+        assertEquals(Arrays.asList(2L, 3L, 1L), search(index, "Ber"));
+        assertEquals(Collections.singletonList(2L), search(index, "Berl"));
+        assertEquals(Collections.singletonList(3L), search(index, "Bern"));
+        assertEquals(Collections.singletonList(5L), search(index, "a"));
+        assertTrue(search(index, "Berlins").isEmpty());
+        assertTrue(search(index, "C").isEmpty());
+        assertTrue(search(index, "Z").isEmpty());
+        assertTrue(search(index, " ").isEmpty());
+    }
+
+    @Test
+    public void ignoresCaseDiacriticsAndWhitespace() throws IOException {
+        PlaceNameIndex index = build(new PlaceNameIndex.Builder()
+                .add("Z\u00fcrich", 47.37, 8.54, 2, 1)
+                .add("S\u00e3o  Paulo", -23.55, -46.63, 1, 2));
+        assertEquals(Collections.singletonList(1L), search(index, "zur"));
+        assertEquals(Collections.singletonList(1L), search(index, "Z\u00dcRICH"));
+        assertEquals(Collections.singletonList(2L), search(index, " sao p"));
+        assertEquals(Collections.singletonList(2L), search(index, "S\u00c3O\tPAULO"));
+        assertEquals("S\u00e3o  Paulo", index.search("sao", 1, 0, 0, 0, 0).get(0).getName());
+    }
+
+    @Test
+    public void returnsMostImportantFirst() {
+        TestPlaceNames names = new TestPlaceNames(5000, 1);
+        PlaceNameIndex index = names.createIndex(1);
+        for (String prefix : new String[]{"b", "ber", "burgel", "w"}) {
+            List<PlaceNameIndex.Place> places = index.search(prefix, 10, 0, 0, 0, 0);
+            assertEquals(10, places.size());
+            assertEquals(names.bruteForce(prefix, 10, 0, 0, 0, 0), TestPlaceNames.getIds(places));
+        }
+    }
+
+    @Test
+    public void filtersByBoundsAcrossTheAntimeridian() throws IOException {
+        PlaceNameIndex index = build(new PlaceNameIndex.Builder()
+                .add("Suva", -18.14, 178.44, 3, 1)
+                .add("Savusavu", -16.78, 179.33, 2, 2)
+                .add("Salelologa", -13.75, -172.2, 4, 3)
+                .add("Station", 0, 180, 5, 4)
+                .add("Sydney", -33.87, 151.21, 1, 5));
+        // Covering many cells, and a few
+        assertEquals(Arrays.asList(4L, 3L, 1L, 2L), searchWithin(index, -90, 175, 90, -170));
+        assertEquals(Arrays.asList(4L, 3L, 1L, 2L), searchWithin(index, -20, 175, 1, -170));
+        assertEquals(Arrays.asList(3L, 1L, 2L), searchWithin(index, -20, 175, -10, -170));
+        assertEquals(Collections.singletonList(5L), searchWithin(index, -40, 150, -30, 152));
+        assertTrue(searchWithin(index, -40, -170, -30, 150).isEmpty());
+        // Inverted latitudes match nothing
+        assertTrue(searchWithin(index, -10, 175, -20, -170).isEmpty());
+    }
+
+    @Test
+    public void matchesBruteForceWithinBounds() {
+        TestPlaceNames names = new TestPlaceNames(5000, 2);
+        Random random = new Random(2);
+        for (double cellSize : new double[]{0.5, 1, 10}) {
+            PlaceNameIndex index = names.createIndex(cellSize);
+            for (int i = 0; i < 200; i++) {
+                String prefix = i % 2 == 0 ? "b" : "ber";
+                // Small and large bounds, some crossing the antimeridian
+                double height = i % 3 == 0 ? 120 : 1 + random.nextDouble() * 20;
+                double width = i % 3 == 0 ? 300 : 1 + random.nextDouble() * 20;
+                double lowerLeftLatitude = random.nextDouble() * (180 - height) - 90;
+                double lowerLeftLongitude = random.nextDouble() * 360 - 180;
+                double upperRightLongitude = lowerLeftLongitude + width;
+                if (upperRightLongitude > 180) upperRightLongitude -= 360;
+                List<PlaceNameIndex.Place> places = index.search(prefix, 5, lowerLeftLatitude,
+                        lowerLeftLongitude, lowerLeftLatitude + height, upperRightLongitude);
+                assertEquals(names.bruteForce(prefix, 5, lowerLeftLatitude, lowerLeftLongitude,
+                        lowerLeftLatitude + height, upperRightLongitude), TestPlaceNames.getIds(places));
+            }
+        }
+    }
+
+    private static PlaceNameIndex build(PlaceNameIndex.Builder builder) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        builder.write(out);
+        return new PlaceNameIndex(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    private static List<Long> search(PlaceNameIndex index, String prefix) {
+        return TestPlaceNames.getIds(index.search(prefix, 10, 0, 0, 0, 0));
+    }
+
+    private static List<Long> searchWithin(PlaceNameIndex index, double lowerLeftLatitude,
+            double lowerLeftLongitude, double upperRightLatitude, double upperRightLongitude) {
+        return TestPlaceNames.getIds(index.search("s", 10, lowerLeftLatitude, lowerLeftLongitude,
+                upperRightLatitude, upperRightLongitude));
+    }
+}
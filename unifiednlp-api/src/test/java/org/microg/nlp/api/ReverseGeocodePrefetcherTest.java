@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.location.Address;
+import android.os.SystemClock;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the {@link ReverseGeocodePrefetcher} bounds its queue and only answers requests
+ * close to and soon after the resolved points.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class ReverseGeocodePrefetcherTest {
+    private static final List<Address> ADDRESSES = Collections.singletonList(new Address(Locale.US));
+
+    @Test
+    public void answersOnlyCloseRequests() {
+        ReverseGeocodePrefetcher prefetcher = new ReverseGeocodePrefetcher(blockingLookup(null));
+        prefetcher.setBudget(0);
+        prefetcher.setTileSize(0.01);
+        prefetcher.onQuery(52.5055, 13.4055, 1, "en", ADDRESSES);
+        assertNotNull(prefetcher.get(52.5056, 13.4056, 1, "en"));
+        // Same tile, about 500 m away
+        assertNull(prefetcher.get(52.5095, 13.4095, 1, "en"));
+        prefetcher.setMaxDistance(1000);
+        assertNotNull(prefetcher.get(52.5095, 13.4095, 1, "en"));
+    }
+
+    @Test
+    public void expiresOldResults() {
+        ReverseGeocodePrefetcher prefetcher = new ReverseGeocodePrefetcher(blockingLookup(null));
+        prefetcher.setBudget(0);
+        prefetcher.setMaxAge(1000);
+        prefetcher.onQuery(52.5, 13.4, 1, "en", ADDRESSES);
+        assertNotNull(prefetcher.get(52.5, 13.4, 1, "en"));
+        SystemClock.sleep(1001);
+        assertNull(prefetcher.get(52.5, 13.4, 1, "en"));
+    }
+
+    @Test
+    public void discardsOldestWaitingTiles() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ReverseGeocodePrefetcher prefetcher = new ReverseGeocodePrefetcher(blockingLookup(release));
+        prefetcher.setBudget(8);
+        // Each request far from the others schedules its 8 surrounding tiles
+        int requests = 2 * ReverseGeocodePrefetcher.MAX_QUEUED / 8 + 2;
+        for (int i = 0; i < requests; i++) {
+            prefetcher.onQuery(10 + i, 10, 1, "en", ADDRESSES);
+            SystemClock.sleep(2 * 60 * 1000);
+        }
+        int scheduled = prefetcher.getPrefetchCount();
+        assertEquals(requests * 8, scheduled);
+        // One is being resolved, MAX_QUEUED are waiting, the tiles of the first requests were discarded
+        assertEquals(scheduled - 1 - ReverseGeocodePrefetcher.MAX_QUEUED, prefetcher.getDiscardedPrefetchCount());
+
+        // Discarded tiles are no longer pending and are scheduled again
+        prefetcher.onQuery(10, 10, 1, "en", ADDRESSES);
+        assertTrue(prefetcher.getPrefetchCount() > scheduled);
+        release.countDown();
+    }
+
+    private static ReverseGeocodePrefetcher.Lookup blockingLookup(final CountDownLatch release) {
+        return new ReverseGeocodePrefetcher.Lookup() {
+            @Override
+            public List<Address> getFromLocation(double latitude, double longitude, int maxResults, String locale) {
+                try {
+                    if (release != null) release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return ADDRESSES;
+            }
+        };
+    }
+}
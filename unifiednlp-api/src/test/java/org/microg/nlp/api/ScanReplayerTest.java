@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.content.Context;
+import android.net.wifi.ScanResult;
+import android.telephony.CellInfo;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records the scans of helpers fed with system scan input and replays them into fresh helpers.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class ScanReplayerTest {
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+    }
+
+    @Test
+    public void replaysWiFiScanResultsThroughParsing() throws Exception {
+        List<ScanResult> scanResults = new ArrayList<ScanResult>(TestScans.scanResults(0, 3));
+        long timestamp = scanResults.get(0).timestamp;
+        scanResults.add(TestScans.scanResult("02-00-00-00-00-AA", "dashed", -70, 2412, timestamp));
+        scanResults.add(TestScans.scanResult(TestScans.mac(99), "home_nomap", -50, 2412, timestamp));
+
+        ByteArrayOutputStream recording = new ByteArrayOutputStream();
+        ScanRecorder recorder = new ScanRecorder(recording);
+        WiFiBackendHelper source = new WiFiBackendHelper(context);
+        source.setReplaying(true);
+        source.setScanRecorder(recorder);
+        source.onOpen();
+        source.onScanResults(true, scanResults);
+        source.onClose();
+        recorder.close();
+
+        final List<Set<WiFiBackendHelper.WiFi>> delivered = new ArrayList<Set<WiFiBackendHelper.WiFi>>();
+        WiFiBackendHelper target = new WiFiBackendHelper(context, new WiFiBackendHelper.Listener() {
+            @Override
+            public void onWiFisChanged(Set<WiFiBackendHelper.WiFi> wiFis) {
+                delivered.add(wiFis);
+            }
+        });
+        ScanReplayer replayer = new ScanReplayer(new ByteArrayInputStream(recording.toByteArray()));
+        replayer.setSpeed(0);
+        replayer.setAutoUpdate(true);
+        replayer.setWiFiBackendHelper(target);
+        target.onOpen();
+        assertEquals(1, replayer.replay());
+        target.onClose();
+
+        assertEquals(1, delivered.size());
+        Set<WiFiBackendHelper.WiFi> wiFis = delivered.get(0);
+        // The _nomap network is dropped, the dashed BSSID is brought to the usual form
+        assertEquals(4, wiFis.size());
+        assertTrue(wiFis.contains(new WiFiBackendHelper.WiFi("02:00:00:00:00:aa", 0)));
+        assertTrue(!wiFis.contains(new WiFiBackendHelper.WiFi(TestScans.mac(99), 0)));
+    }
+
+    @Test
+    public void replaysLeBatch() throws Exception {
+        ByteArrayOutputStream recording = new ByteArrayOutputStream();
+        ScanRecorder recorder = new ScanRecorder(recording);
+        BluetoothBackendHelper source = new BluetoothBackendHelper(context);
+        source.setReplaying(true);
+        source.setScanRecorder(recorder);
+        source.onOpen();
+        source.onLeScanParsed(Arrays.asList(new BluetoothBackendHelper.Bluetooth("02:00:00:00:00:cc", null, -70),
+                new BluetoothBackendHelper.Bluetooth("02:00:00:00:00:dd", "tag", -80)));
+        source.onClose();
+        recorder.close();
+
+        final List<Set<BluetoothBackendHelper.Bluetooth>> delivered = new ArrayList<Set<BluetoothBackendHelper.Bluetooth>>();
+        BluetoothBackendHelper target = new BluetoothBackendHelper(context, new BluetoothBackendHelper.Listener() {
+            @Override
+            public void onBluetoothChanged(Set<BluetoothBackendHelper.Bluetooth> bluetooth) {
+                delivered.add(bluetooth);
+            }
+        });
+        ScanReplayer replayer = new ScanReplayer(new ByteArrayInputStream(recording.toByteArray()));
+        replayer.setSpeed(0);
+        replayer.setAutoUpdate(true);
+        replayer.setBluetoothBackendHelper(target);
+        target.onOpen();
+        assertEquals(1, replayer.replay());
+        target.onClose();
+
+        assertEquals(1, delivered.size());
+        assertEquals(2, delivered.get(0).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherVersions() throws Exception {
+        ByteArrayOutputStream recording = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(recording);
+        out.writeInt(ScanRecorder.MAGIC);
+        out.writeByte(ScanRecorder.VERSION + 1);
+        out.writeLong(System.currentTimeMillis());
+        out.close();
+        new ScanReplayer(new ByteArrayInputStream(recording.toByteArray()));
+    }
+
+    @Test
+    public void replaysCellsFixedWhenRecorded() throws Exception {
+        // Android 9 reports an empty MNC for 0-prefixed MNCs, fixed from the network operator
+        List<CellInfo> cellInfo = new ArrayList<CellInfo>();
+        cellInfo.add(TestScans.lteCellInfo("262", null, 4711, 42, 300, -90, true));
+
+        ByteArrayOutputStream recording = new ByteArrayOutputStream();
+        ScanRecorder recorder = new ScanRecorder(recording);
+        CellBackendHelper source = new CellBackendHelper(context);
+        source.setReplaying(true);
+        source.setScanRecorder(recorder);
+        source.onOpen();
+        source.onCellInfoReplayed(1, "26201", cellInfo, null);
+        source.onClose();
+        recorder.close();
+
+        final List<Set<CellBackendHelper.Cell>> delivered = new ArrayList<Set<CellBackendHelper.Cell>>();
+        CellBackendHelper target = new CellBackendHelper(context, new CellBackendHelper.Listener() {
+            @Override
+            public void onCellsChanged(Set<CellBackendHelper.Cell> cells) {
+                delivered.add(cells);
+            }
+        });
+        ScanReplayer replayer = new ScanReplayer(new ByteArrayInputStream(recording.toByteArray()));
+        replayer.setSpeed(0);
+        replayer.setAutoUpdate(true);
+        replayer.setCellBackendHelper(target);
+        target.onOpen();
+        assertEquals(1, replayer.replay());
+        target.onClose();
+
+        assertEquals(1, delivered.size());
+        assertEquals(Collections.singleton(new CellBackendHelper.Cell(CellBackendHelper.Cell.CellType.LTE,
+                262, 1, 300, 4711, 42, -90)), delivered.get(0));
+        CellBackendHelper.Cell cell = delivered.get(0).iterator().next();
+        assertEquals(1, cell.getSubscriptionId());
+    }
+
+    @Test
+    public void replaysBluetoothDiscovery() throws Exception {
+        ByteArrayOutputStream recording = new ByteArrayOutputStream();
+        ScanRecorder recorder = new ScanRecorder(recording);
+        BluetoothBackendHelper source = new BluetoothBackendHelper(context);
+        source.setReplaying(true);
+        source.setScanRecorder(recorder);
+        source.onOpen();
+        source.onDiscoveryStarted();
+        source.onDeviceFound("02-00-00-00-00-BB", "beacon", -60);
+        source.onDiscoveryFinished();
+        source.onClose();
+        recorder.close();
+
+        final List<Set<BluetoothBackendHelper.Bluetooth>> delivered = new ArrayList<Set<BluetoothBackendHelper.Bluetooth>>();
+        BluetoothBackendHelper target = new BluetoothBackendHelper(context, new BluetoothBackendHelper.Listener() {
+            @Override
+            public void onBluetoothChanged(Set<BluetoothBackendHelper.Bluetooth> bluetooth) {
+                delivered.add(bluetooth);
+            }
+        });
+        ScanReplayer replayer = new ScanReplayer(new ByteArrayInputStream(recording.toByteArray()));
+        replayer.setSpeed(0);
+        replayer.setAutoUpdate(true);
+        replayer.setBluetoothBackendHelper(target);
+        target.onOpen();
+        assertEquals(3, replayer.replay());
+        target.onClose();
+
+        assertEquals(1, delivered.size());
+        BluetoothBackendHelper.Bluetooth bluetooth = delivered.get(0).iterator().next();
+        assertEquals("02:00:00:00:00:bb", bluetooth.getBssid());
+        assertEquals("beacon", bluetooth.getName());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates places with names made of a few syllables for {@link PlaceNameIndex} tests, spread
+ * over the whole world, each with a different importance.
+ */
+final class TestPlaceNames {
+    private static final String[] SYLLABLES = {
+            "ba", "ber", "burg", "dorf", "el", "fel", "gar", "hau", "ken", "lin",
+            "mar", "nes", "ost", "pe", "ried", "sen", "tal", "ul", "wald", "zen"
+    };
+
+    /**
+     * Places in insertion order, with ids equal to their position.
+     */
+    final List<PlaceNameIndex.Place> places;
+
+    TestPlaceNames(int placeCount, long seed) {
+        Random random = new Random(seed);
+        // Distinct importances, so the expected order is unambiguous
+        List<Integer> importances = new ArrayList<Integer>(placeCount);
+        for (int i = 0; i < placeCount; i++) {
+            importances.add(i);
+        }
+        Collections.shuffle(importances, random);
+        places = new ArrayList<PlaceNameIndex.Place>(placeCount);
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < placeCount; i++) {
+            name.setLength(0);
+            int syllables = 2 + random.nextInt(3);
+            for (int j = 0; j < syllables; j++) {
+                name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+            name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+            places.add(new PlaceNameIndex.Place(name.toString(), random.nextDouble() * 180 - 90,
+                    random.nextDouble() * 360 - 180, importances.get(i), i));
+        }
+    }
+
+    PlaceNameIndex createIndex(double cellSize) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            write(out, cellSize);
+            return new PlaceNameIndex(ByteBuffer.wrap(out.toByteArray()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return an index of all places, memory-mapped from the given file.
+     */
+    PlaceNameIndex createIndex(File file, double cellSize) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            write(out, cellSize);
+        } finally {
+            out.close();
+        }
+        return PlaceNameIndex.open(file);
+    }
+
+    private void write(OutputStream out, double cellSize) throws IOException {
+        PlaceNameIndex.Builder builder = new PlaceNameIndex.Builder().setCellSize(cellSize);
+        for (PlaceNameIndex.Place place : places) {
+            builder.add(place);
+        }
+        builder.write(out);
+    }
+
+    /**
+     * @return the ids of the most important places matching the prefix and bounds, by comparing
+     * the query to every place.
+     */
+    List<Long> bruteForce(String prefix, int maxResults, double lowerLeftLatitude,
+            double lowerLeftLongitude, double upperRightLatitude, double upperRightLongitude) {
+        String key = PlaceNameIndex.normalize(prefix);
+        boolean bounded = lowerLeftLatitude != 0 || lowerLeftLongitude != 0
+                || upperRightLatitude != 0 || upperRightLongitude != 0;
+        List<PlaceNameIndex.Place> matches = new ArrayList<PlaceNameIndex.Place>();
+        for (PlaceNameIndex.Place place : places) {
+            if (!PlaceNameIndex.normalize(place.getName()).startsWith(key)) continue;
+            if (bounded && !isInBounds(place, lowerLeftLatitude, lowerLeftLongitude,
+                    upperRightLatitude, upperRightLongitude)) continue;
+            matches.add(place);
+        }
+        Collections.sort(matches, new Comparator<PlaceNameIndex.Place>() {
+            @Override
+            public int compare(PlaceNameIndex.Place lhs, PlaceNameIndex.Place rhs) {
+                return Float.compare(rhs.getImportance(), lhs.getImportance());
+            }
+        });
+        return getIds(matches.subList(0, Math.min(maxResults, matches.size())));
+    }
+
+    static List<Long> getIds(List<PlaceNameIndex.Place> places) {
+        List<Long> ids = new ArrayList<Long>(places.size());
+        for (PlaceNameIndex.Place place : places) {
+            ids.add(place.getId());
+        }
+        return ids;
+    }
+
+    private static boolean isInBounds(PlaceNameIndex.Place place, double lowerLeftLatitude,
+            double lowerLeftLongitude, double upperRightLatitude, double upperRightLongitude) {
+        // Compared like the index stores them, with 6 decimal places
+        long latitude = Math.round(place.getLatitude() * 1e6);
+        long longitude = Math.round(place.getLongitude() * 1e6);
+        long minLongitude = Math.round(lowerLeftLongitude * 1e6);
+        long maxLongitude = Math.round(upperRightLongitude * 1e6);
+        if (latitude < Math.round(lowerLeftLatitude * 1e6) || latitude > Math.round(upperRightLatitude * 1e6)) return false;
+        if (minLongitude <= maxLongitude) return longitude >= minLongitude && longitude <= maxLongitude;
+        return longitude >= minLongitude || longitude <= maxLongitude;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates Wi-Fi fingerprints of places for {@link WiFiPlaceIndex} tests.
+ * <p/>
+ * Each place sees 10 of the 16 access points of its neighbourhood, and four places share a
+ * neighbourhood on average, so a scan is similar to a few places to varying degrees. Queries are
+ * scans of a known place with one access point replaced by an unknown one.
+ */
+final class TestPlaces {
+    private static final int WIFIS_PER_PLACE = 10;
+    private static final int WIFIS_PER_NEIGHBOURHOOD = 16;
+    private static final int PLACES_PER_NEIGHBOURHOOD = 4;
+
+    /**
+     * Access points, indexed by the ids used in places and queries.
+     */
+    final List<WiFiBackendHelper.WiFi> wiFis;
+    /**
+     * Sorted access point ids of each place, in insertion order.
+     */
+    final int[][] places;
+    /**
+     * Sorted access point ids of each query.
+     */
+    final int[][] queries;
+
+    TestPlaces(int placeCount, int queryCount, long seed) {
+        Random random = new Random(seed);
+        int known = placeCount / PLACES_PER_NEIGHBOURHOOD * WIFIS_PER_NEIGHBOURHOOD + WIFIS_PER_NEIGHBOURHOOD;
+        wiFis = createWiFis(known + queryCount);
+        places = new int[placeCount][];
+        int[] neighbourhood = new int[WIFIS_PER_NEIGHBOURHOOD];
+        for (int i = 0; i < placeCount; i++) {
+            int first = random.nextInt(placeCount / PLACES_PER_NEIGHBOURHOOD) * WIFIS_PER_NEIGHBOURHOOD;
+            for (int j = 0; j < neighbourhood.length; j++) {
+                neighbourhood[j] = first + j;
+            }
+            // Partial Fisher-Yates shuffle
+            for (int j = 0; j < WIFIS_PER_PLACE; j++) {
+                int k = j + random.nextInt(neighbourhood.length - j);
+                int swap = neighbourhood[j];
+                neighbourhood[j] = neighbourhood[k];
+                neighbourhood[k] = swap;
+            }
+            places[i] = Arrays.copyOf(neighbourhood, WIFIS_PER_PLACE);
+            Arrays.sort(places[i]);
+        }
+        queries = new int[queryCount][];
+        for (int i = 0; i < queryCount; i++) {
+            // Unknown access points come after all neighbourhoods
+            int[] query = places[random.nextInt(placeCount)].clone();
+            query[random.nextInt(query.length)] = known + i;
+            Arrays.sort(query);
+            queries[i] = query;
+        }
+    }
+
+    /**
+     * @return an index of all places, with place ids equal to their position in {@link #places}.
+     */
+    WiFiPlaceIndex createIndex() {
+        WiFiPlaceIndex index = new WiFiPlaceIndex();
+        index.setCapacity(places.length);
+        for (int[] place : places) {
+            index.insert(toWiFis(place), 0, 0);
+        }
+        return index;
+    }
+
+    List<WiFiBackendHelper.WiFi> toWiFis(int[] ids) {
+        List<WiFiBackendHelper.WiFi> scan = new ArrayList<WiFiBackendHelper.WiFi>(ids.length);
+        for (int id : ids) {
+            scan.add(wiFis.get(id));
+        }
+        return scan;
+    }
+
+    /**
+     * @return the ids of all places at least {@code minSimilarity} similar to the query, by
+     * comparing it to every place.
+     */
+    List<Integer> bruteForce(int[] query, float minSimilarity) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < places.length; i++) {
+            if (getSimilarity(query, places[i]) >= minSimilarity) ids.add(i);
+        }
+        return ids;
+    }
+
+    /**
+     * Exact Jaccard similarity of two sorted sets.
+     */
+    static float getSimilarity(int[] a, int[] b) {
+        int shared = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] == b[j]) {
+                shared++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return (float) shared / (a.length + b.length - shared);
+    }
+
+    private static List<WiFiBackendHelper.WiFi> createWiFis(int count) {
+        List<WiFiBackendHelper.WiFi> wiFis = new ArrayList<WiFiBackendHelper.WiFi>(count);
+        for (int i = 0; i < count; i++) {
+            wiFis.add(new WiFiBackendHelper.WiFi(TestScans.mac(i), -70));
+        }
+        return wiFis;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.net.wifi.ScanResult;
+import android.os.SystemClock;
+import android.telephony.CellIdentityLte;
+import android.telephony.CellInfo;
+import android.telephony.CellInfoLte;
+import android.telephony.CellSignalStrengthLte;
+
+import org.robolectric.util.ReflectionHelpers;
+import org.robolectric.util.ReflectionHelpers.ClassParameter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates system scan input (Wi-Fi scan results, LTE cell info) for tests, using the hidden
+ * constructors the system uses. Requires the Robolectric runner with {@code sdk = 28}.
+ */
+final class TestScans {
+    private TestScans() {
+    }
+
+    static String mac(long index) {
+        return MacUtil.unpack(0x020000000000L | index);
+    }
+
+    static ScanResult scanResult(String bssid, String ssid, int level, int frequency, long timestamp) {
+        ScanResult scanResult = ReflectionHelpers.callConstructor(ScanResult.class);
+        scanResult.BSSID = bssid;
+        scanResult.SSID = ssid;
+        scanResult.level = level;
+        scanResult.frequency = frequency;
+        scanResult.timestamp = timestamp;
+        return scanResult;
+    }
+
+    /**
+     * @return {@code count} access points, starting with index {@code first}, seen just now.
+     */
+    static List<ScanResult> scanResults(int first, int count) {
+        long timestamp = SystemClock.elapsedRealtime() * 1000;
+        List<ScanResult> scanResults = new ArrayList<ScanResult>(count);
+        for (int i = first; i < first + count; i++) {
+            scanResults.add(scanResult(mac(i), "net" + i, -40 - i % 60, i % 2 == 0 ? 2437 : 5180, timestamp));
+        }
+        return scanResults;
+    }
+
+    /**
+     * @param mnc MNC as string, may be {@code null} like on some Android 9 devices.
+     */
+    static CellInfoLte lteCellInfo(String mcc, String mnc, int ci, int pci, int tac, int rsrp, boolean registered) {
+        CellIdentityLte identity = ReflectionHelpers.callConstructor(CellIdentityLte.class,
+                ClassParameter.from(int.class, ci), ClassParameter.from(int.class, pci),
+                ClassParameter.from(int.class, tac), ClassParameter.from(int.class, Integer.MAX_VALUE),
+                ClassParameter.from(int.class, Integer.MAX_VALUE), ClassParameter.from(String.class, mcc),
+                ClassParameter.from(String.class, mnc), ClassParameter.from(String.class, null),
+                ClassParameter.from(String.class, null));
+        CellSignalStrengthLte strength = ReflectionHelpers.callConstructor(CellSignalStrengthLte.class,
+                ClassParameter.from(int.class, Integer.MAX_VALUE), ClassParameter.from(int.class, rsrp),
+                ClassParameter.from(int.class, Integer.MAX_VALUE), ClassParameter.from(int.class, Integer.MAX_VALUE),
+                ClassParameter.from(int.class, Integer.MAX_VALUE), ClassParameter.from(int.class, Integer.MAX_VALUE));
+        CellInfoLte info = ReflectionHelpers.callConstructor(CellInfoLte.class);
+        ReflectionHelpers.callInstanceMethod(info, "setCellIdentity",
+                ClassParameter.from(CellIdentityLte.class, identity));
+        ReflectionHelpers.callInstanceMethod(info, "setCellSignalStrength",
+                ClassParameter.from(CellSignalStrengthLte.class, strength));
+        ReflectionHelpers.callInstanceMethod(info, "setRegistered", ClassParameter.from(boolean.class, registered));
+        return info;
+    }
+
+    /**
+     * @return {@code count} LTE cells of operator 262 01, the first one registered.
+     */
+    static List<CellInfo> cellInfo(int first, int count) {
+        List<CellInfo> cellInfo = new ArrayList<CellInfo>(count);
+        for (int i = first; i < first + count; i++) {
+            cellInfo.add(lteCellInfo("262", "01", 1000 + i, i % 504, 100 + i % 50, -80 - i % 40, i == first));
+        }
+        return cellInfo;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import android.net.wifi.ScanResult;
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds generated scan results into {@link WiFiBackendHelper} the way its broadcast receiver does,
+ * and checks what is delivered. Time and allocations are measured by {@link HelperBenchmark}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class WiFiBackendHelperTest {
+    private final AtomicInteger deliveries = new AtomicInteger();
+    private volatile Set<WiFiBackendHelper.WiFi> lastDelivery;
+    private WiFiBackendHelper helper;
+
+    @Before
+    public void setUp() {
+        helper = new WiFiBackendHelper(RuntimeEnvironment.application, new WiFiBackendHelper.Listener() {
+            @Override
+            public void onWiFisChanged(Set<WiFiBackendHelper.WiFi> wiFis) {
+                lastDelivery = wiFis;
+                deliveries.incrementAndGet();
+            }
+        });
+        helper.setReplaying(true);
+        helper.onOpen();
+    }
+
+    @After
+    public void tearDown() {
+        if (helper.isOpened()) helper.onClose();
+    }
+
+    @Test
+    public void deliversEveryAccessPointOfLargeScans() {
+        List<ScanResult> scan = TestScans.scanResults(0, 5000);
+        loadScan(scan);
+        assertEquals(5000, lastDelivery.size());
+        loadScan(TestScans.scanResults(5000, 10));
+        assertEquals(10, lastDelivery.size());
+    }
+
+    @Test
+    public void reusesUnchangedWiFis() {
+        helper.setReuseWiFis(true);
+        List<ScanResult> scan = TestScans.scanResults(0, 10);
+        loadScan(scan);
+        WiFiBackendHelper.WiFi first = find(lastDelivery, scan.get(0).BSSID);
+        scan.get(1).level -= 10;
+        loadScan(scan);
+        assertSame(first, find(lastDelivery, scan.get(0).BSSID));
+        assertEquals(scan.get(1).level, find(lastDelivery, scan.get(1).BSSID).getRssi());
+    }
+
+    @Test
+    public void dispatchesOnlyWhileScanning() {
+        List<ScanResult> scan = TestScans.scanResults(0, 10);
+        helper.onScanResults(true, scan);
+        assertEquals(0, deliveries.get());
+        loadScan(scan);
+        assertEquals(1, deliveries.get());
+        // Results of other apps' scans between updates are kept, but not dispatched
+        helper.onScanResults(true, TestScans.scanResults(10, 5));
+        assertEquals(1, deliveries.get());
+        helper.onUpdate();
+        assertEquals(2, deliveries.get());
+        assertEquals(5, lastDelivery.size());
+    }
+
+    @Test
+    public void throwingListenerDoesNotBlockLaterDeliveries() {
+        final AtomicInteger calls = new AtomicInteger();
+        WiFiBackendHelper throwing = new WiFiBackendHelper(RuntimeEnvironment.application,
+                new WiFiBackendHelper.Listener() {
+                    @Override
+                    public void onWiFisChanged(Set<WiFiBackendHelper.WiFi> wiFis) {
+                        if (calls.incrementAndGet() == 1) throw new IllegalStateException("listener failed");
+                    }
+                });
+        throwing.setDispatchExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                try {
+                    command.run();
+                } catch (IllegalStateException ignored) {
+                    // Like an executor that logs and drops failed tasks
+                }
+            }
+        });
+        throwing.setReplaying(true);
+        throwing.onOpen();
+        for (int i = 0; i < 2; i++) {
+            throwing.onUpdate();
+            throwing.onScanResults(true, TestScans.scanResults(i, 10));
+        }
+        throwing.onClose();
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void subscriptionsAndCallerShareTheHelper() {
+        WiFiBackendHelper.Listener ignore = new WiFiBackendHelper.Listener() {
+            @Override
+            public void onWiFisChanged(Set<WiFiBackendHelper.WiFi> wiFis) {
+            }
+        };
+        AbstractBackendHelper.Subscription<WiFiBackendHelper.Listener> first = helper.subscribe(ignore, 1000, null);
+        AbstractBackendHelper.Subscription<WiFiBackendHelper.Listener> second = helper.subscribe(ignore, 1000, null);
+        helper.onClose();
+        assertTrue(helper.isOpened());
+        first.cancel();
+        assertTrue(helper.isOpened());
+        second.cancel();
+        assertFalse(helper.isOpened());
+
+        // Opened by a subscription first, then by the caller
+        first = helper.subscribe(ignore, 1000, null);
+        helper.onOpen();
+        first.cancel();
+        assertTrue(helper.isOpened());
+        helper.onClose();
+        assertFalse(helper.isOpened());
+    }
+
+    @Test
+    public void requestedScanModeAppliesUntilReset() {
+        List<ScanResult> scan = TestScans.scanResults(0, 10);
+        // Older than the maximum age of passive results
+        SystemClock.sleep(10 * 60 * 1000);
+        helper.setRequestedScanMode(WiFiBackendHelper.ScanMode.PASSIVE);
+        loadScan(scan);
+        assertEquals(0, deliveries.get());
+        helper.setRequestedScanMode(null);
+        loadScan(scan);
+        assertEquals(10, lastDelivery.size());
+    }
+
+    @Test
+    public void closingWhileScanningDisablesOnResults() {
+        helper.onUpdate();
+        assertEquals(AbstractBackendHelper.State.SCANNING, helper.state);
+        helper.onClose();
+        assertEquals(AbstractBackendHelper.State.DISABLING, helper.state);
+        helper.onUpdate();
+        assertEquals(AbstractBackendHelper.State.DISABLING, helper.state);
+        helper.onScanResults(true, TestScans.scanResults(0, 10));
+        assertEquals(AbstractBackendHelper.State.DISABLED, helper.state);
+        assertFalse(helper.isOpened());
+        assertEquals(0, deliveries.get());
+    }
+
+    private void loadScan(List<ScanResult> scan) {
+        helper.onUpdate();
+        helper.onScanResults(true, scan);
+    }
+
+    private static WiFiBackendHelper.WiFi find(Set<WiFiBackendHelper.WiFi> wiFis, String bssid) {
+        for (WiFiBackendHelper.WiFi wiFi : wiFis) {
+            if (wiFi.getBssid().equals(bssid)) return wiFi;
+        }
+        throw new AssertionError(bssid + " not found");
+    }
+}
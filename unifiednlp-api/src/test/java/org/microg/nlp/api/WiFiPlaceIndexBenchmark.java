@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures building {@link WiFiPlaceIndex} instances of up to 100k places and querying them,
+ * compared to a brute-force search over all places.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class WiFiPlaceIndexBenchmark {
+    private static final int[] INDEX_SIZES = {1000, 10000, 100000};
+    private static final int QUERIES = 200;
+    private static final int BATCHES = 3;
+    private static final float MIN_SIMILARITY = 0.3f;
+
+    @Test
+    public void buildAndQuery() {
+        for (int size : INDEX_SIZES) {
+            final TestPlaces places = new TestPlaces(size, QUERIES, size);
+            long buildNanos = Benchmarks.bestNanosPerRun(new Runnable() {
+                @Override
+                public void run() {
+                    places.createIndex();
+                }
+            }, 1, BATCHES);
+            final WiFiPlaceIndex index = places.createIndex();
+            long queryNanos = Benchmarks.bestNanosPerRun(new Runnable() {
+                @Override
+                public void run() {
+                    for (int[] query : places.queries) {
+                        index.query(places.toWiFis(query), MIN_SIMILARITY, 10);
+                    }
+                }
+            }, 1, BATCHES) / QUERIES;
+            long bruteForceNanos = Benchmarks.bestNanosPerRun(new Runnable() {
+                @Override
+                public void run() {
+                    for (int[] query : places.queries) {
+                        places.bruteForce(query, MIN_SIMILARITY);
+                    }
+                }
+            }, 1, BATCHES) / QUERIES;
+            Benchmarks.report("WiFiPlaceIndex: " + size + " places, " + buildNanos / size + " ns per insert, "
+                    + queryNanos + " ns per query, brute force " + bruteForceNanos + " ns");
+            if (size >= 100000) {
+                assertTrue("Query took " + queryNanos + " ns, brute force " + bruteForceNanos + " ns",
+                        queryNanos * 10 < bruteForceNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2013-2017 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.api;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the results of {@link WiFiPlaceIndex} to a brute-force search by exact Jaccard
+ * similarity. Build and query time are measured by {@link WiFiPlaceIndexBenchmark}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class WiFiPlaceIndexTest {
+    /**
+     * Places at least this similar to a query are expected in the results. The default index
+     * finds each of them with a probability of 98% or more.
+     */
+    private static final float RELEVANT_SIMILARITY = 0.6f;
+    private static final float MIN_SIMILARITY = 0.3f;
+    private static final float MIN_RECALL = 0.95f;
+
+    @Test
+    public void findsSimilarPlaces() {
+        TestPlaces places = new TestPlaces(10000, 200, 1);
+        WiFiPlaceIndex index = places.createIndex();
+        int relevant = 0;
+        int found = 0;
+        for (int[] query : places.queries) {
+            Set<Integer> ids = new HashSet<Integer>();
+            for (WiFiPlaceIndex.Match match : index.query(places.toWiFis(query), MIN_SIMILARITY, 100)) {
+                ids.add(match.getId());
+            }
+            List<Integer> expected = places.bruteForce(query, RELEVANT_SIMILARITY);
+            relevant += expected.size();
+            for (int id : expected) {
+                if (ids.contains(id)) found++;
+            }
+        }
+        float recall = (float) found / relevant;
+        assertTrue("Recall " + recall + " of " + relevant, recall >= MIN_RECALL);
+    }
+
+    @Test
+    public void returnsMostSimilarFirst() {
+        TestPlaces places = new TestPlaces(1000, 50, 2);
+        WiFiPlaceIndex index = places.createIndex();
+        for (int[] query : places.queries) {
+            List<WiFiPlaceIndex.Match> matches = index.query(places.toWiFis(query), 0, 3);
+            assertTrue(matches.size() <= 3);
+            for (int i = 1; i < matches.size(); i++) {
+                assertTrue(matches.get(i - 1).getSimilarity() >= matches.get(i).getSimilarity());
+            }
+        }
+    }
+
+    @Test
+    public void evictsOldestPlaces() {
+        TestPlaces places = new TestPlaces(100, 0, 3);
+        WiFiPlaceIndex index = places.createIndex();
+        index.setCapacity(50);
+        assertEquals(50, index.size());
+        for (WiFiPlaceIndex.Match match : index.query(places.toWiFis(places.places[0]), 0, 100)) {
+            assertTrue("Evicted place " + match.getId() + " found", match.getId() >= 50);
+        }
+    }
+}